@@ -0,0 +1,260 @@
+package com.mojavy.android.pima;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.mojavy.android.pima.util.PimaUtil;
+import com.mojavy.android.pima.util.Protocol;
+
+/**
+ * Finds the key bindings in the configuration that do nothing but run a
+ * builtin, such as
+ *
+ * <pre>
+ * bind_key("C-f") { RIME::BuiltIn::right }
+ * </pre>
+ *
+ * and compiles them to a table of chord to builtin opcode, so that those
+ * keys need not run the interpreter.  Every other binding is left to the
+ * service.
+ *
+ * The table can only stand in for the service if nothing else can bind
+ * keys: a configuration that loads local files, or calls bind_key other
+ * than at the top level with a literal key, is not compiled.  Neither is
+ * one with a block comment or a heredoc, whose lines a line by line scan
+ * would take for code.
+ *
+ * Results are cached by the SHA-1 of the configuration, in memory and in a
+ * file, so that an unchanged configuration is not parsed again.
+ */
+class BindingCompiler {
+
+	/**
+	 * the hash of the configuration the keyboard compiled, for the service,
+	 * which answers with the hash of what it evaluated under
+	 * {@link KeyBindingTable#KEY_LOADED_CONFIG_HASH}
+	 */
+	static final String KEY_CONFIG_HASH = "config_hash";
+
+	private static final int MAGIC = 0x524b4232; // RKB2
+
+	private static final Pattern BUILTIN_BINDING = Pattern.compile(
+			"bind_key\\(\\s*\"([^\"]+)\"\\s*\\)\\s*\\{\\s*RIME::BuiltIn::(\\w+)\\s*\\}\\s*(#.*)?");
+	private static final Pattern LITERAL_BINDING = Pattern.compile(
+			"bind_key\\(\\s*\"([^\"]+)\"\\s*\\).*");
+	private static final Pattern LOCAL_LOAD = Pattern.compile(
+			"\\s*(require_relative\\b.*|load\\b.*|require\\s*\\(?\\s*['\"](\\.|/|~).*)");
+	/** <<IDENT, <<-IDENT, <<~IDENT, with the identifier possibly quoted */
+	private static final Pattern HEREDOC = Pattern.compile(
+			"<<[~-]?(['\"`]?)[A-Za-z_]\\w*\\1");
+
+	private static final Map<String, Integer> BUILTINS = new HashMap<String, Integer>();
+	static {
+		BUILTINS.put("right", Protocol.BUILTIN_RIGHT);
+		BUILTINS.put("left", Protocol.BUILTIN_LEFT);
+		BUILTINS.put("next_line", Protocol.BUILTIN_NEXT_LINE);
+		BUILTINS.put("previous_line", Protocol.BUILTIN_PREVIOUSE_LINE);
+		BUILTINS.put("scroll_up", Protocol.BUILTIN_SCROLL_UP);
+		BUILTINS.put("scroll_down", Protocol.BUILTIN_SCROLL_DOWN);
+		BUILTINS.put("end_of_line", Protocol.BUILTIN_END_OF_LINE);
+		BUILTINS.put("beginning_of_line", Protocol.BUILTIN_BEGINNING_OF_LINE);
+		BUILTINS.put("forward_sexp", Protocol.BUILTIN_FORWARD_SEXP);
+		BUILTINS.put("backward_sexp", Protocol.BUILTIN_BACKWARD_SEXP);
+	}
+
+	private final File mCacheFile;
+	private String mHash;
+	private KeyBindingTable mTable;
+
+	int mCompiled;
+	int mCacheHits;
+
+	BindingCompiler(File cacheFile) {
+		mCacheFile = cacheFile;
+	}
+
+	/**
+	 * Returns the builtin bindings of config, or null if it is not closed.
+	 * May be called off the main thread.
+	 */
+	synchronized KeyBindingTable compile(String config) {
+		String hash = hash(config);
+		if (hash.equals(mHash)) {
+			mCacheHits++;
+			return mTable;
+		}
+		if (!load(hash)) {
+			mCompiled++;
+			StringBuilder reason = new StringBuilder();
+			mTable = parse(config, reason);
+			mHash = hash;
+			if (mTable == null) {
+				PimaUtil.info("not compiling key bindings, %s", reason);
+			}
+			save();
+		}
+		PimaUtil.info("compiled key bindings: %s", mTable);
+		return mTable;
+	}
+
+	/**
+	 * The hash of the configuration last compiled.
+	 */
+	synchronized String getHash() {
+		return mHash;
+	}
+
+	static KeyBindingTable parse(String config) {
+		return parse(config, null);
+	}
+
+	/**
+	 * Returns the builtin bindings of config, or null if it can not be
+	 * compiled, in which case the reason is appended to reason (if not
+	 * null).
+	 */
+	static KeyBindingTable parse(String config, StringBuilder reason) {
+		KeyBindingTable table = new KeyBindingTable();
+		for (String line : config.split("\n")) {
+			String trimmed = line.trim();
+			if (line.startsWith("=begin")) {
+				return refuse(reason, "block comment", trimmed);
+			}
+			if (trimmed.length() == 0 || trimmed.startsWith("#")) {
+				continue;
+			}
+			if (LOCAL_LOAD.matcher(line).matches()) {
+				return refuse(reason, "config loads", trimmed);
+			}
+			if (HEREDOC.matcher(line).find()) {
+				return refuse(reason, "heredoc", trimmed);
+			}
+			if (line.indexOf("bind_key") < 0) {
+				continue;
+			}
+			Matcher m = LITERAL_BINDING.matcher(line);
+			if (!m.matches()) {
+				// indented or not a literal key: bound at run time
+				return refuse(reason, "dynamic", trimmed);
+			}
+			int chord = KeyChord.parse(m.group(1));
+			if (chord == 0) {
+				continue;
+			}
+			Matcher b = BUILTIN_BINDING.matcher(line);
+			Integer opcode = b.matches() ? BUILTINS.get(b.group(2)) : null;
+			// a later binding of the same key replaces an earlier one
+			table.put(chord, opcode != null ? opcode : KeyBindingTable.REMOTE);
+		}
+		return table;
+	}
+
+	private static KeyBindingTable refuse(StringBuilder reason, String why, String line) {
+		if (reason != null) {
+			reason.append(why).append(": ").append(line);
+		}
+		return null;
+	}
+
+	/**
+	 * The SHA-1 of the configuration's UTF-8 bytes, in lower case hex.
+	 */
+	static String hash(String config) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] digest = md.digest(config.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Reads the cache file if it holds the bindings for hash.  The file is
+	 * the magic number, the hash, and the number of bindings followed by
+	 * that many pairs of chord and opcode; a count of -1 records a
+	 * configuration that can not be compiled.
+	 */
+	private boolean load(String hash) {
+		if (!mCacheFile.exists()) {
+			return false;
+		}
+		try {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(mCacheFile)));
+			try {
+				if (in.readInt() != MAGIC || !hash.equals(in.readUTF())) {
+					return false;
+				}
+				KeyBindingTable table = null;
+				int count = in.readInt();
+				if (count < -1 || count > mCacheFile.length() / 8) {
+					throw new IOException("bad count " + count);
+				}
+				if (count >= 0) {
+					table = new KeyBindingTable();
+					for (int i = 0; i < count; i++) {
+						table.put(in.readInt(), in.readInt());
+					}
+				}
+				mTable = table;
+				mHash = hash;
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			PimaUtil.warn("failed to read compiled key bindings: %s", e.toString());
+		}
+		return false;
+	}
+
+	private void save() {
+		File tmp = new File(mCacheFile.getPath() + ".tmp");
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeInt(MAGIC);
+				out.writeUTF(mHash);
+				if (mTable != null) {
+					int[] entries = mTable.entries();
+					out.writeInt(entries.length / 2);
+					for (int e : entries) {
+						out.writeInt(e);
+					}
+				} else {
+					out.writeInt(-1);
+				}
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(mCacheFile)) {
+				throw new IOException("rename failed");
+			}
+		} catch (IOException e) {
+			PimaUtil.warn("failed to save compiled key bindings: %s", e.toString());
+		}
+	}
+}
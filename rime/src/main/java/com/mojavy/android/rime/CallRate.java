@@ -0,0 +1,32 @@
+package com.mojavy.android.pima;
+
+import android.os.SystemClock;
+
+/**
+ * Counts calls and the most made in any one second, for the statistics
+ * logged when input finishes.
+ */
+class CallRate {
+
+	private long mTotal;
+	private long mSecond;
+	private int mInSecond;
+	private int mPeak;
+
+	void count() {
+		long second = SystemClock.uptimeMillis() / 1000;
+		if (second != mSecond) {
+			mSecond = second;
+			mInSecond = 0;
+		}
+		mTotal++;
+		if (++mInSecond > mPeak) {
+			mPeak = mInSecond;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("calls=%d peak=%d/s", mTotal, mPeak);
+	}
+}
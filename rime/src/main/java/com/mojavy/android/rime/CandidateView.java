@@ -25,9 +25,12 @@ import android.graphics.drawable.Drawable;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.View;
+import android.widget.Scroller;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.mojavy.android.pima.R;
 
@@ -44,13 +47,13 @@ public class CandidateView extends View {
     
     private Rect mBgPadding;
 
-    private static final int MAX_SUGGESTIONS = 32;
-    private static final int SCROLL_PIXELS = 20;
+    private static final int INITIAL_CAPACITY = 32;
     
-    private int[] mWordWidth = new int[MAX_SUGGESTIONS];
-    private int[] mWordX = new int[MAX_SUGGESTIONS];
+    private int[] mWordWidth = new int[INITIAL_CAPACITY];
+    private int[] mWordX = new int[INITIAL_CAPACITY];
 
     private static final int X_GAP = 10;
+    private static final int WIDTH_CACHE_SIZE = 256;
     
     private static final List<String> EMPTY_LIST = new ArrayList<String>();
 
@@ -60,10 +63,21 @@ public class CandidateView extends View {
     private int mVerticalPadding;
     private Paint mPaint;
     private boolean mScrolled;
-    private int mTargetScrollX;
+    private Scroller mScroller;
     
     private int mTotalWidth;
     
+    /** measured text widths, for the text size in mWidthCacheTextSize */
+    private final Map<String, Integer> mWidthCache = new LinkedHashMap<String, Integer>(
+            WIDTH_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > WIDTH_CACHE_SIZE;
+        }
+    };
+    private float mWidthCacheTextSize;
+    private int mLayoutCount;
+    
     private GestureDetector mGestureDetector;
 
     /**
@@ -107,15 +121,27 @@ public class CandidateView extends View {
                 if (sx < 0) {
                     sx = 0;
                 }
+                layoutUpTo(sx + getWidth() * 2);
                 if (sx + getWidth() > mTotalWidth) {                    
                     sx -= distanceX;
                 }
-                mTargetScrollX = sx;
                 scrollTo(sx, getScrollY());
                 invalidate();
                 return true;
             }
+
+            @Override
+            public boolean onFling(MotionEvent e1, MotionEvent e2,
+                    float velocityX, float velocityY) {
+                // the far end is not known until the words are placed, so
+                // computeScroll stops the fling there
+                mScroller.fling(getScrollX(), 0, (int) -velocityX, 0,
+                        0, Integer.MAX_VALUE / 2, 0, 0);
+                invalidate();
+                return true;
+            }
         });
+        mScroller = new Scroller(context);
         setHorizontalFadingEdgeEnabled(true);
         setWillNotDraw(false);
         setHorizontalScrollBarEnabled(false);
@@ -152,15 +178,88 @@ public class CandidateView extends View {
     }
 
     /**
-     * If the canvas is null, then only touch calculations are performed to pick the target
-     * candidate.
+     * Forgets where the suggestions were placed.  They are placed again by
+     * {@link #layoutUpTo} as the strip is drawn and scrolled.
+     */
+    private void resetLayout() {
+        mLayoutCount = 0;
+        mTotalWidth = 0;
+        if (mPaint.getTextSize() != mWidthCacheTextSize) {
+            mWidthCache.clear();
+            mWidthCacheTextSize = mPaint.getTextSize();
+        }
+    }
+    
+    /**
+     * Places suggestions along the strip until one ends past right, so
+     * that however long the list is, only the words that have been on
+     * screen are measured.  Widths of words seen before come from a cache.
+     */
+    private void layoutUpTo(int right) {
+        if (mSuggestions == null) return;
+        final Paint paint = mPaint;
+        final int count = mSuggestions.size();
+        int i = mLayoutCount;
+        int x = mTotalWidth;
+        while (i < count && x <= right) {
+            if (i == mWordX.length) {
+                int[] wordX = new int[i * 2];
+                int[] wordWidth = new int[i * 2];
+                System.arraycopy(mWordX, 0, wordX, 0, i);
+                System.arraycopy(mWordWidth, 0, wordWidth, 0, i);
+                mWordX = wordX;
+                mWordWidth = wordWidth;
+            }
+            String suggestion = mSuggestions.get(i);
+            Integer textWidth = mWidthCache.get(suggestion);
+            if (textWidth == null) {
+                textWidth = (int) paint.measureText(suggestion);
+                mWidthCache.put(suggestion, textWidth);
+            }
+            final int wordWidth = textWidth + X_GAP * 2;
+            mWordX[i] = x;
+            mWordWidth[i] = wordWidth;
+            x += wordWidth;
+            i++;
+        }
+        mLayoutCount = i;
+        mTotalWidth = x;
+    }
+    
+    /**
+     * Returns the first placed suggestion ending after x.
      */
+    private int firstEndingAfter(int x) {
+        int lo = 0;
+        int hi = mLayoutCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mWordX[mid] + mWordWidth[mid] <= x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+    
+    /**
+     * Returns the suggestion at x on the strip, or -1.
+     */
+    private int indexAt(int x) {
+        layoutUpTo(x);
+        int i = firstEndingAfter(x);
+        return i < mLayoutCount && mWordX[i] <= x ? i : -1;
+    }
+    
+    private void updateSelectedIndex() {
+        mSelectedIndex = mTouchX != OUT_OF_BOUNDS && !mScrolled
+                ? indexAt(mTouchX + getScrollX()) : -1;
+    }
+    
     @Override
     protected void onDraw(Canvas canvas) {
-        if (canvas != null) {
-            super.onDraw(canvas);
-        }
-        mTotalWidth = 0;
+        super.onDraw(canvas);
         if (mSuggestions == null) return;
         
         if (mBgPadding == null) {
@@ -169,70 +268,61 @@ public class CandidateView extends View {
                 getBackground().getPadding(mBgPadding);
             }
         }
-        int x = 0;
-        final int count = mSuggestions.size(); 
+        if (mPaint.getTextSize() != mWidthCacheTextSize) {
+            resetLayout();
+        }
         final int height = getHeight();
+        final int left = getScrollX();
+        final int right = left + getWidth();
+        // a screen's worth on either side is kept ready for scrolling
+        layoutUpTo(right + getWidth());
+        final int count = mLayoutCount;
         final Rect bgPadding = mBgPadding;
         final Paint paint = mPaint;
-        final int touchX = mTouchX;
-        final int scrollX = getScrollX();
-        final boolean scrolled = mScrolled;
         final boolean typedWordValid = mTypedWordValid;
         final int y = (int) (((height - mPaint.getTextSize()) / 2) - mPaint.ascent());
 
-        for (int i = 0; i < count; i++) {
+        for (int i = firstEndingAfter(left); i < count && mWordX[i] < right; i++) {
             String suggestion = mSuggestions.get(i);
-            float textWidth = paint.measureText(suggestion);
-            final int wordWidth = (int) textWidth + X_GAP * 2;
-
-            mWordX[i] = x;
-            mWordWidth[i] = wordWidth;
+            final int x = mWordX[i];
+            final int wordWidth = mWordWidth[i];
             paint.setColor(mColorNormal);
-            if (touchX + scrollX >= x && touchX + scrollX < x + wordWidth && !scrolled) {
-                if (canvas != null) {
-                    canvas.translate(x, 0);
-                    mSelectionHighlight.setBounds(0, bgPadding.top, wordWidth, height);
-                    mSelectionHighlight.draw(canvas);
-                    canvas.translate(-x, 0);
-                }
-                mSelectedIndex = i;
+            if (i == mSelectedIndex && !mScrolled) {
+                canvas.translate(x, 0);
+                mSelectionHighlight.setBounds(0, bgPadding.top, wordWidth, height);
+                mSelectionHighlight.draw(canvas);
+                canvas.translate(-x, 0);
             }
 
-            if (canvas != null) {
-                if ((i == 1 && !typedWordValid) || (i == 0 && typedWordValid)) {
-                    paint.setFakeBoldText(true);
-                    paint.setColor(mColorRecommended);
-                } else if (i != 0) {
-                    paint.setColor(mColorOther);
-                }
-                canvas.drawText(suggestion, x + X_GAP, y, paint);
-                paint.setColor(mColorOther); 
-                canvas.drawLine(x + wordWidth + 0.5f, bgPadding.top, 
-                        x + wordWidth + 0.5f, height + 1, paint);
-                paint.setFakeBoldText(false);
+            if ((i == 1 && !typedWordValid) || (i == 0 && typedWordValid)) {
+                paint.setFakeBoldText(true);
+                paint.setColor(mColorRecommended);
+            } else if (i != 0) {
+                paint.setColor(mColorOther);
             }
-            x += wordWidth;
-        }
-        mTotalWidth = x;
-        if (mTargetScrollX != getScrollX()) {
-            scrollToTarget();
+            canvas.drawText(suggestion, x + X_GAP, y, paint);
+            paint.setColor(mColorOther); 
+            canvas.drawLine(x + wordWidth + 0.5f, bgPadding.top, 
+                    x + wordWidth + 0.5f, height + 1, paint);
+            paint.setFakeBoldText(false);
         }
     }
     
-    private void scrollToTarget() {
-        int sx = getScrollX();
-        if (mTargetScrollX > sx) {
-            sx += SCROLL_PIXELS;
-            if (sx >= mTargetScrollX) {
-                sx = mTargetScrollX;
-                requestLayout();
-            }
-        } else {
-            sx -= SCROLL_PIXELS;
-            if (sx <= mTargetScrollX) {
-                sx = mTargetScrollX;
-                requestLayout();
-            }
+    /**
+     * Steps a fling.  Called before every frame is drawn, so the strip moves
+     * by how much time has passed rather than by how often it is drawn.
+     */
+    @Override
+    public void computeScroll() {
+        if (!mScroller.computeScrollOffset()) {
+            return;
+        }
+        int sx = mScroller.getCurrX();
+        layoutUpTo(sx + getWidth() * 2);
+        int max = Math.max(0, mTotalWidth - getWidth());
+        if (sx > max) {
+            sx = max;
+            mScroller.forceFinished(true);
         }
         scrollTo(sx, getScrollY());
         invalidate();
@@ -246,15 +336,15 @@ public class CandidateView extends View {
         }
         mTypedWordValid = typedWordValid;
         scrollTo(0, 0);
-        mTargetScrollX = 0;
-        // Compute the total width
-        onDraw(null);
+        mScroller.forceFinished(true);
+        resetLayout();
         invalidate();
         requestLayout();
     }
 
     public void clear() {
         mSuggestions = EMPTY_LIST;
+        resetLayout();
         mTouchX = OUT_OF_BOUNDS;
         mSelectedIndex = -1;
         invalidate();
@@ -274,10 +364,14 @@ public class CandidateView extends View {
 
         switch (action) {
         case MotionEvent.ACTION_DOWN:
-            mScrolled = false;
+            // a touch that stops a fling does not pick a word
+            mScrolled = !mScroller.isFinished();
+            mScroller.forceFinished(true);
+            updateSelectedIndex();
             invalidate();
             break;
         case MotionEvent.ACTION_MOVE:
+            updateSelectedIndex();
             if (y <= 0) {
                 // Fling up!?
                 if (mSelectedIndex >= 0) {
@@ -288,6 +382,7 @@ public class CandidateView extends View {
             invalidate();
             break;
         case MotionEvent.ACTION_UP:
+            updateSelectedIndex();
             if (!mScrolled) {
                 if (mSelectedIndex >= 0) {
                     mService.pickSuggestionManually(mSelectedIndex);
@@ -295,7 +390,6 @@ public class CandidateView extends View {
             }
             mSelectedIndex = -1;
             removeHighlight();
-            requestLayout();
             break;
         }
         return true;
@@ -308,8 +402,7 @@ public class CandidateView extends View {
      */
     public void takeSuggestionAt(float x) {
         mTouchX = (int) x;
-        // To detect candidate
-        onDraw(null);
+        updateSelectedIndex();
         if (mSelectedIndex >= 0) {
             mService.pickSuggestionManually(mSelectedIndex);
         }
@@ -0,0 +1,170 @@
+package com.mojavy.android.pima;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mojavy.android.pima.dict.Dictionary;
+import com.mojavy.android.pima.dict.DictionaryCursor;
+import com.mojavy.android.pima.dict.UserHistory;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+/**
+ * Computes candidates on a thread of its own so that ranking never delays
+ * a key.  Every request gets a new generation number; a request still
+ * queued when the next one comes in is dropped, and a result is only
+ * handed to the listener, on the main thread, if no newer request has been
+ * made since.
+ */
+class CandidateWorker implements Handler.Callback {
+
+	interface Listener {
+		/**
+		 * Called on the main thread with the candidates for the latest
+		 * request, the typed text first.
+		 */
+		void onCandidates(List<String> candidates, boolean typedWordValid);
+	}
+
+	private static final int MSG_COMPUTE = 1;
+
+	private final HandlerThread mThread;
+	private final Handler mHandler;
+	private final Handler mMain = new Handler();
+	private final AtomicInteger mGeneration = new AtomicInteger();
+	private final UserHistory mHistory;
+	private final int mMax;
+	private final Listener mListener;
+	private volatile Dictionary mDictionary;
+
+	// only touched on the worker thread
+	private DictionaryCursor mCursor;
+
+	// only touched on the main thread
+	private int mDeliveredGeneration;
+
+	private int mRequests;
+	private int mDelivered;
+
+	/**
+	 * Must be created on the main thread.
+	 */
+	CandidateWorker(UserHistory history, int max, Listener listener) {
+		mHistory = history;
+		mMax = max;
+		mListener = listener;
+		mThread = new HandlerThread("candidates");
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper(), this);
+	}
+
+	void setDictionary(Dictionary dictionary) {
+		mDictionary = dictionary;
+	}
+
+	/**
+	 * Asks for the candidates for typed, which follows the word prev (null
+	 * if none).
+	 */
+	void request(String typed, String prev) {
+		int generation = mGeneration.incrementAndGet();
+		mRequests++;
+		mHandler.removeMessages(MSG_COMPUTE);
+		mHandler.obtainMessage(MSG_COMPUTE, generation, 0, new String[] { typed, prev }).sendToTarget();
+	}
+
+	/**
+	 * Forgets any request not answered yet.
+	 */
+	void cancel() {
+		mGeneration.incrementAndGet();
+		mHandler.removeMessages(MSG_COMPUTE);
+	}
+
+	/**
+	 * True if the candidates last delivered answer the latest request, i.e.
+	 * the text has not changed since they were computed.  Called on the
+	 * main thread.
+	 */
+	boolean isCurrent() {
+		return mDeliveredGeneration == mGeneration.get();
+	}
+
+	void quit() {
+		cancel();
+		mThread.quit();
+	}
+
+	public boolean handleMessage(Message msg) {
+		if (msg.what != MSG_COMPUTE) {
+			return false;
+		}
+		final int generation = msg.arg1;
+		String[] args = (String[]) msg.obj;
+		final List<String> list = new ArrayList<String>();
+		list.add(args[0]);
+		final boolean typedWordValid = addCompletions(args[0], args[1], list, generation);
+		if (generation != mGeneration.get()) {
+			return true;
+		}
+		mMain.post(new Runnable() {
+			public void run() {
+				// a key may have come in while this was on its way
+				if (generation == mGeneration.get()) {
+					mDelivered++;
+					mDeliveredGeneration = generation;
+					mListener.onCandidates(list, typedWordValid);
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Adds the words starting with the typed text, beginning with the typed
+	 * text itself so that its capitalization is kept: first the ones the
+	 * user has committed before, most often after the previous word first,
+	 * then the dictionary's.
+	 * Returns whether the typed text is a known word.
+	 */
+	private boolean addCompletions(String typed, String prev, List<String> list, int generation) {
+		ArrayList<String> words = new ArrayList<String>();
+		mHistory.complete(prev, typed, mMax, words);
+		boolean known = words.contains(typed.toLowerCase());
+		Dictionary dictionary = mDictionary;
+		if (dictionary != null && generation == mGeneration.get()) {
+			if (mCursor == null) {
+				mCursor = new DictionaryCursor(dictionary);
+			}
+			mCursor.sync(typed);
+			known |= mCursor.isWord();
+			mCursor.complete(mMax, words);
+		} else if (words.isEmpty()) {
+			// nothing to check the typed text against
+			return true;
+		}
+		for (String w : words) {
+			if (list.size() > mMax) {
+				break;
+			}
+			if (w.length() == typed.length()) {
+				// the typed word itself is already first
+				continue;
+			}
+			String candidate = typed + w.substring(typed.length());
+			if (!list.contains(candidate)) {
+				list.add(candidate);
+			}
+		}
+		return known;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("requests=%d delivered=%d superseded=%d",
+				mRequests, mDelivered, mRequests - mDelivered);
+	}
+}
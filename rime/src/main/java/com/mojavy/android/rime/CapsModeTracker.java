@@ -0,0 +1,125 @@
+package com.mojavy.android.pima;
+
+import android.text.InputType;
+import android.text.TextUtils;
+import android.view.inputmethod.InputConnection;
+
+/**
+ * Works out the caps mode at the cursor from a copy of the last few
+ * characters before it, instead of asking the editor on every key.  The
+ * copy is kept up by {@link #committed} and checked against what the editor
+ * reports through {@link #updateSelection}: the cursor positions our own
+ * commits should lead to are queued, and a report matching none of them
+ * means something else changed the text, so the copy is fetched again
+ * the next time it is needed.
+ */
+class CapsModeTracker {
+
+	/** how much text before the cursor is kept */
+	static final int TAIL_LENGTH = 64;
+
+	private static final int CAP_FLAGS = InputType.TYPE_TEXT_FLAG_CAP_CHARACTERS
+			| InputType.TYPE_TEXT_FLAG_CAP_WORDS | InputType.TYPE_TEXT_FLAG_CAP_SENTENCES;
+	private static final int MAX_EXPECTED = 16;
+
+	private final StringBuilder mTail = new StringBuilder();
+	private final StringBuilder mScratch = new StringBuilder();
+	private boolean mValid;
+	private int mBase;
+	private final int[] mExpected = new int[MAX_EXPECTED];
+	private int mExpectedCount;
+
+	private int mQueries;
+	private int mEditorCalls;
+
+	/**
+	 * Starts over for a new editor with the cursor at selStart.
+	 */
+	void startInput(int selStart) {
+		invalidate();
+		mBase = selStart;
+		mExpectedCount = 0;
+		expect(mBase);
+	}
+
+	void invalidate() {
+		mValid = false;
+		mTail.setLength(0);
+	}
+
+	/**
+	 * Notes text committed at the cursor, replacing the composing text if
+	 * there was any.
+	 */
+	void committed(CharSequence text) {
+		mBase += text.length();
+		expect(mBase);
+		if (mValid) {
+			mTail.append(text);
+			if (mTail.length() > TAIL_LENGTH) {
+				mTail.delete(0, mTail.length() - TAIL_LENGTH);
+			}
+		}
+	}
+
+	/**
+	 * Checks a selection change reported by the editor against the edits
+	 * made since.
+	 */
+	void updateSelection(int newSelStart, int newSelEnd,
+			int candidatesStart, int candidatesEnd) {
+		int base = candidatesStart >= 0 ? candidatesStart : newSelStart;
+		boolean atEnd = newSelStart == newSelEnd
+				&& (candidatesStart < 0 || newSelStart == candidatesEnd);
+		for (int i = 0; atEnd && i < mExpectedCount; i++) {
+			if (mExpected[i] == base) {
+				// the editor has caught up to this edit
+				mExpectedCount -= i;
+				System.arraycopy(mExpected, i, mExpected, 0, mExpectedCount);
+				return;
+			}
+		}
+		invalidate();
+		mBase = base;
+		mExpectedCount = 0;
+		expect(mBase);
+	}
+
+	private void expect(int pos) {
+		if (mExpectedCount == MAX_EXPECTED) {
+			// the oldest report is not coming, or is too late to matter
+			System.arraycopy(mExpected, 1, mExpected, 0, --mExpectedCount);
+		}
+		mExpected[mExpectedCount++] = pos;
+	}
+
+	/**
+	 * Returns what {@link InputConnection#getCursorCapsMode} would, with
+	 * composing being the composing text in front of the cursor.
+	 */
+	int getCapsMode(InputConnection ic, int inputType, CharSequence composing) {
+		int reqModes = inputType & CAP_FLAGS;
+		if (reqModes == 0) {
+			return 0;
+		}
+		mQueries++;
+		if (!mValid) {
+			mEditorCalls++;
+			CharSequence before = ic.getTextBeforeCursor(TAIL_LENGTH + composing.length(), 0);
+			if (before == null) {
+				return ic.getCursorCapsMode(inputType);
+			}
+			int end = Math.max(0, before.length() - composing.length());
+			mTail.append(before, 0, end);
+			mValid = true;
+		}
+		mScratch.setLength(0);
+		mScratch.append(mTail).append(composing);
+		return TextUtils.getCapsMode(mScratch, mScratch.length(), reqModes);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("queries=%d editor calls=%d", mQueries, mEditorCalls);
+	}
+}
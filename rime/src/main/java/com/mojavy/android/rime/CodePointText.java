@@ -0,0 +1,56 @@
+package com.mojavy.android.pima;
+
+/**
+ * A single code point as a CharSequence, reused for every character the
+ * keyboard commits on its own so that a keystroke does not need a new
+ * String.  Whoever receives it must copy it if they keep it.
+ *
+ * Key codes are not always code points (the service or a keyboard layout
+ * can hand over anything), so a value outside the Unicode range is taken
+ * as a single char, as the keyboard did before it handled code points.
+ */
+class CodePointText implements CharSequence {
+
+	private final char[] mChars = new char[2];
+	private int mLength;
+
+	CodePointText set(int codePoint) {
+		if (Character.isValidCodePoint(codePoint)) {
+			mLength = Character.toChars(codePoint, mChars, 0);
+		} else {
+			mChars[0] = (char) codePoint;
+			mLength = 1;
+		}
+		return this;
+	}
+
+	/**
+	 * Appends codePoint to sb the way {@link #set} reads it.
+	 */
+	static StringBuilder append(StringBuilder sb, int codePoint) {
+		if (Character.isValidCodePoint(codePoint)) {
+			return sb.appendCodePoint(codePoint);
+		}
+		return sb.append((char) codePoint);
+	}
+
+	public int length() {
+		return mLength;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= mLength) {
+			throw new IndexOutOfBoundsException(String.valueOf(index));
+		}
+		return mChars[index];
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		return toString().subSequence(start, end);
+	}
+
+	@Override
+	public String toString() {
+		return new String(mChars, 0, mLength);
+	}
+}
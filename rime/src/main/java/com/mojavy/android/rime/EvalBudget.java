@@ -0,0 +1,164 @@
+package com.mojavy.android.pima;
+
+import android.os.Bundle;
+
+/**
+ * Limits on what a single key binding or eval may use in the script host:
+ * wall time, heap growth and output size.  The host enforces them and, when
+ * one is hit, stops the script and answers with
+ * {@link #KEY_BUDGET_EXCEEDED} naming the budget, so the keyboard can fall
+ * back at once instead of waiting.  The keyboard also keeps its own
+ * watchdog and output cap for evals, in case the host does not.
+ *
+ * The time a key binding gets follows the dispatcher's timeout, so that
+ * the host gives up first and its answer still arrives in time.
+ */
+class EvalBudget {
+
+	/**
+	 * Where the budgets go, the service's current data in the keyboard.
+	 */
+	interface Sink {
+		void put(String key, String value);
+	}
+
+	/**
+	 * What the keyboard does about a script the host has stopped.
+	 */
+	interface Fallback {
+		/** handles the key of a stopped key binding as if it were not bound */
+		void key(int code, String budget);
+		/** ends a stopped eval, keeping what it has produced */
+		void eval(String budget);
+	}
+
+	static final String KEY_BUDGET_KEYBIND_TIME = "budget_keybind_time_ms";
+	static final String KEY_BUDGET_EVAL_TIME = "budget_eval_time_ms";
+	static final String KEY_BUDGET_HEAP = "budget_heap_bytes";
+	static final String KEY_BUDGET_OUTPUT = "budget_output_chars";
+	/** in a reply: the budget ("time", "heap" or "output") that stopped the script */
+	static final String KEY_BUDGET_EXCEEDED = "budget_exceeded";
+
+	static final String TIME = "time";
+	static final String HEAP = "heap";
+	static final String OUTPUT = "output";
+
+	static final int DEFAULT_EVAL_TIME_MS = 10000;
+	static final int DEFAULT_HEAP_BYTES = 16 << 20;
+	static final int DEFAULT_OUTPUT_CHARS = 64 << 10;
+	/** how long past the eval budget the keyboard waits for the host */
+	static final int WATCHDOG_GRACE_MS = 1000;
+
+	private final Sink mSink;
+	private boolean mSent;
+	private int mKeybindTimeMs = keybindTime(KeyDispatcher.DEFAULT_TIMEOUT_MS);
+
+	int mExceeded;
+	int mWatchdogFired;
+
+	EvalBudget(Sink sink) {
+		mSink = sink;
+	}
+
+	/**
+	 * The part of a dispatcher timeout a key binding may run for.
+	 */
+	static int keybindTime(long timeoutMs) {
+		return (int) Math.min(Integer.MAX_VALUE, timeoutMs * 3 / 4);
+	}
+
+	/**
+	 * Tells the host the budgets, the first time only, or the first time
+	 * since {@link #reset}.  Returns the number of messages sent.
+	 */
+	int send() {
+		if (mSent) {
+			return 0;
+		}
+		mSink.put(KEY_BUDGET_KEYBIND_TIME, String.valueOf(mKeybindTimeMs));
+		mSink.put(KEY_BUDGET_EVAL_TIME, String.valueOf(DEFAULT_EVAL_TIME_MS));
+		mSink.put(KEY_BUDGET_HEAP, String.valueOf(DEFAULT_HEAP_BYTES));
+		mSink.put(KEY_BUDGET_OUTPUT, String.valueOf(DEFAULT_OUTPUT_CHARS));
+		mSent = true;
+		return 4;
+	}
+
+	/**
+	 * Forgets that the budgets were sent, so that a host which may have
+	 * been restarted meanwhile gets them again.
+	 */
+	void reset() {
+		mSent = false;
+	}
+
+	/**
+	 * Follows the dispatcher's timeout, telling the host again if the
+	 * budgets have already gone out.  Returns the number of messages sent.
+	 */
+	int setKeybindTimeout(long timeoutMs) {
+		int ms = keybindTime(timeoutMs);
+		if (ms == mKeybindTimeMs) {
+			return 0;
+		}
+		mKeybindTimeMs = ms;
+		if (!mSent) {
+			return 0;
+		}
+		mSink.put(KEY_BUDGET_KEYBIND_TIME, String.valueOf(ms));
+		return 1;
+	}
+
+	/**
+	 * Acts on a reply that says a budget was exceeded: a key binding falls
+	 * back to the plain key, code, at once and an eval ends.  eval tells
+	 * which one the reply answers.  Returns false for any other reply.
+	 */
+	boolean handle(Bundle data, boolean eval, int code, Fallback fallback) {
+		return handle(data.getString(KEY_BUDGET_EXCEEDED), eval, code, fallback);
+	}
+
+	/**
+	 * As {@link #handle(Bundle, boolean, int, Fallback)}, given the value
+	 * of {@link #KEY_BUDGET_EXCEEDED}.
+	 */
+	boolean handle(String budget, boolean eval, int code, Fallback fallback) {
+		if (exceeded(budget) == null) {
+			return false;
+		}
+		if (eval) {
+			fallback.eval(budget);
+		} else {
+			fallback.key(code, budget);
+		}
+		return true;
+	}
+
+	/**
+	 * Counts budget, the value of {@link #KEY_BUDGET_EXCEEDED} in a reply,
+	 * if there is one, and returns it.
+	 */
+	String exceeded(String budget) {
+		if (budget != null) {
+			mExceeded++;
+		}
+		return budget;
+	}
+
+	int getKeybindTimeMs() {
+		return mKeybindTimeMs;
+	}
+
+	int getEvalWatchdogMs() {
+		return DEFAULT_EVAL_TIME_MS + WATCHDOG_GRACE_MS;
+	}
+
+	int getOutputChars() {
+		return DEFAULT_OUTPUT_CHARS;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("keybind time=%d ms exceeded=%d watchdog=%d",
+				mKeybindTimeMs, mExceeded, mWatchdogFired);
+	}
+}
@@ -0,0 +1,133 @@
+package com.mojavy.android.pima;
+
+import com.mojavy.android.pima.util.PimaServiceProxy;
+import com.mojavy.android.pima.util.PimaUtil;
+
+import android.os.Bundle;
+
+/**
+ * Bookkeeping for evals whose result the service streams back in chunks
+ * instead of in one reply.  The keyboard asks for streaming once, and
+ * numbers every eval; the service echoes the number in each reply, so
+ * chunks still on their way after an eval was cancelled or superseded can
+ * be told apart and dropped.
+ *
+ * A streamed reply carries {@link #KEY_SCRIPT_RESULT_CHUNK}, the next piece
+ * of the result, and the last one {@link #KEY_SCRIPT_RESULT_DONE}.  A
+ * service that does not stream keeps answering with a single result, which
+ * is handled as before.
+ */
+class EvalStream {
+
+	/** asks the service to stream eval results */
+	static final String KEY_STREAM_EVAL = "stream_eval";
+	/** the number of the eval a request or reply belongs to */
+	static final String KEY_EVAL_ID = "eval_id";
+	/** tells the service to stop the eval with the given number */
+	static final String KEY_EVAL_CANCEL = "eval_cancel";
+	static final String KEY_SCRIPT_RESULT_CHUNK = "script_result_chunk";
+	static final String KEY_SCRIPT_RESULT_DONE = "script_result_done";
+
+	private final PimaServiceProxy mProxy;
+	private boolean mRequested;
+	private int mId;
+	private boolean mActive;
+
+	int mChunks;
+	long mChars;
+	int mCancelled;
+	int mDropped;
+
+	EvalStream(PimaServiceProxy proxy) {
+		mProxy = proxy;
+	}
+
+	/**
+	 * Called before sending an eval; tells the service its number.  Returns
+	 * the number of messages sent.
+	 */
+	int begin() {
+		int sent = 0;
+		if (!mRequested) {
+			mProxy.putCurrentData(KEY_STREAM_EVAL, "true");
+			mRequested = true;
+			sent++;
+		}
+		mId++;
+		mProxy.putCurrentData(KEY_EVAL_ID, String.valueOf(mId));
+		mActive = true;
+		return sent + 1;
+	}
+
+	/**
+	 * Forgets that streaming was asked for, so that a service which may
+	 * have been restarted meanwhile is asked again.  Eval numbers keep
+	 * counting up, so replies to earlier evals are still told apart.
+	 */
+	void reset() {
+		mRequested = false;
+	}
+
+	/**
+	 * True while a streamed result is coming in.
+	 */
+	boolean isActive() {
+		return mActive;
+	}
+
+	static boolean isStreamed(Bundle data) {
+		return data.containsKey(KEY_SCRIPT_RESULT_CHUNK) || data.containsKey(KEY_SCRIPT_RESULT_DONE);
+	}
+
+	/**
+	 * True for a reply to an eval that is no longer the current one.  A
+	 * reply without a number is taken to be for the current eval.
+	 */
+	boolean isLate(Bundle data) {
+		String id = data.getString(KEY_EVAL_ID);
+		if (id == null) {
+			// not a reply to an eval, or from a service that does not number them
+			return false;
+		}
+		if (mActive && id.equals(String.valueOf(mId))) {
+			return false;
+		}
+		mDropped++;
+		return true;
+	}
+
+	/**
+	 * Counts a chunk of the current result.
+	 */
+	void chunk(String text) {
+		mChunks++;
+		mChars += text.length();
+	}
+
+	/**
+	 * The result is complete.
+	 */
+	void end() {
+		mActive = false;
+	}
+
+	/**
+	 * Stops the current eval, if any.  Returns the number of messages sent.
+	 */
+	int cancel() {
+		if (!mActive) {
+			return 0;
+		}
+		PimaUtil.info("cancelling eval %d", mId);
+		mProxy.putCurrentData(KEY_EVAL_CANCEL, String.valueOf(mId));
+		mActive = false;
+		mCancelled++;
+		return 1;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("evals=%d chunks=%d chars=%d cancelled=%d dropped=%d",
+				mId, mChunks, mChars, mCancelled, mDropped);
+	}
+}
@@ -0,0 +1,122 @@
+package com.mojavy.android.pima;
+
+/**
+ * A gap buffer of chars.  Edits near the previous edit are cheap: only the
+ * text between the two edit points is moved.
+ */
+class GapBuffer implements CharSequence {
+
+	private char[] mBuf;
+	private int mGapStart;
+	private int mGapEnd;
+
+	GapBuffer() {
+		this(256);
+	}
+
+	GapBuffer(int capacity) {
+		mBuf = new char[Math.max(16, capacity)];
+		mGapStart = 0;
+		mGapEnd = mBuf.length;
+	}
+
+	public int length() {
+		return mBuf.length - (mGapEnd - mGapStart);
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= length()) {
+			throw new IndexOutOfBoundsException(String.valueOf(index));
+		}
+		return index < mGapStart ? mBuf[index] : mBuf[index + mGapEnd - mGapStart];
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > length() || start > end) {
+			throw new IndexOutOfBoundsException(start + "," + end);
+		}
+		char[] chars = new char[end - start];
+		getChars(start, end, chars, 0);
+		return new String(chars);
+	}
+
+	/**
+	 * Copies [start, end) into dst at off, in at most two copies, one on
+	 * each side of the gap.
+	 */
+	void getChars(int start, int end, char[] dst, int off) {
+		if (start < mGapStart) {
+			int n = Math.min(end, mGapStart) - start;
+			System.arraycopy(mBuf, start, dst, off, n);
+			start += n;
+			off += n;
+		}
+		if (start < end) {
+			System.arraycopy(mBuf, start + mGapEnd - mGapStart, dst, off, end - start);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return subSequence(0, length()).toString();
+	}
+
+	void clear() {
+		mGapStart = 0;
+		mGapEnd = mBuf.length;
+	}
+
+	void set(CharSequence text) {
+		clear();
+		replace(0, 0, text);
+	}
+
+	/**
+	 * Replaces [start, end) with text.
+	 */
+	void replace(int start, int end, CharSequence text) {
+		if (start < 0 || end > length() || start > end) {
+			throw new IndexOutOfBoundsException(start + "," + end);
+		}
+		moveGap(start);
+		// the removed chars are simply swallowed by the gap
+		mGapEnd += end - start;
+		int n = text.length();
+		if (n > mGapEnd - mGapStart) {
+			grow(n);
+		}
+		if (text instanceof String) {
+			((String) text).getChars(0, n, mBuf, mGapStart);
+			mGapStart += n;
+		} else {
+			for (int i = 0; i < n; i++) {
+				mBuf[mGapStart++] = text.charAt(i);
+			}
+		}
+	}
+
+	private void moveGap(int pos) {
+		if (pos < mGapStart) {
+			int n = mGapStart - pos;
+			System.arraycopy(mBuf, pos, mBuf, mGapEnd - n, n);
+			mGapStart -= n;
+			mGapEnd -= n;
+		} else if (pos > mGapStart) {
+			int n = pos - mGapStart;
+			System.arraycopy(mBuf, mGapEnd, mBuf, mGapStart, n);
+			mGapStart += n;
+			mGapEnd += n;
+		}
+	}
+
+	private void grow(int needed) {
+		int len = length();
+		int capacity = Math.max(mBuf.length * 2, len + needed + 16);
+		char[] buf = new char[capacity];
+		int tail = mBuf.length - mGapEnd;
+		System.arraycopy(mBuf, 0, buf, 0, mGapStart);
+		System.arraycopy(mBuf, mGapEnd, buf, capacity - tail, tail);
+		mBuf = buf;
+		mGapEnd = capacity - tail;
+	}
+}
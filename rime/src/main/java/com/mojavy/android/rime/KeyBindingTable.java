@@ -0,0 +1,272 @@
+package com.mojavy.android.pima;
+
+import java.util.Arrays;
+
+import com.mojavy.android.pima.util.PimaUtil;
+
+import android.os.Bundle;
+
+/**
+ * The set of key chords bound by the script configuration.  The service
+ * attaches the bound key expressions to its replies under
+ * {@link #KEY_BOUND_KEYS} whenever the configuration is loaded or reloaded,
+ * so that unbound keys can be handled locally without a round trip.
+ *
+ * Chords are {@link KeyChord} ints and are kept in an open addressing
+ * table, so a lookup never allocates.
+ *
+ * Bindings that only run a builtin can be compiled from the configuration
+ * by {@link BindingCompiler}; once installed with {@link #setCompiled},
+ * lookups of those chords return the builtin opcode instead of
+ * {@link #REMOTE}.  They are only used while the service says, under
+ * {@link #KEY_LOADED_CONFIG_HASH}, that it runs the very configuration
+ * they were compiled from; until it has reported its bindings, every key
+ * is {@link #REMOTE}, compiled or not.
+ */
+class KeyBindingTable {
+
+	static final String KEY_BOUND_KEYS = "bound_keys";
+	/**
+	 * optional, along with {@link #KEY_BOUND_KEYS}: for each key the builtin
+	 * opcode it runs, or -1 if it needs the interpreter
+	 */
+	static final String KEY_BOUND_OPCODES = "bound_opcodes";
+	/**
+	 * optional, along with {@link #KEY_BOUND_KEYS}: the hash of the
+	 * configuration the service evaluated, as {@link BindingCompiler#hash}
+	 * computes it
+	 */
+	static final String KEY_LOADED_CONFIG_HASH = "loaded_config_hash";
+
+	/** lookup result for chords the configuration does not bind */
+	static final int NOT_BOUND = -2;
+	/** lookup result for chords which must be evaluated by the script service */
+	static final int REMOTE = -1;
+	// any other result is the opcode of the builtin the chord runs
+
+	/** marks a free slot; bits 21 to 23 are never set in a chord */
+	private static final int EMPTY = -1;
+
+	private int[] mKeys = newKeys(16);
+	private int[] mValues = new int[16];
+	private int mSize;
+	private boolean mLoaded = false;
+	private String mLoadedHash;
+	/** the opcodes the service sent, which take precedence; null if none */
+	private KeyBindingTable mServiceOpcodes;
+	private KeyBindingTable mCompiled;
+	private String mCompiledHash;
+
+	/** lookups answered on the keyboard: keys not bound, or bound to a builtin */
+	int mLocalLookups;
+	/** lookups of keys only the service can run */
+	int mRemoteLookups;
+
+	/**
+	 * Replaces the table with the bound keys found in a reply from the
+	 * service, if it carries any.
+	 */
+	void update(Bundle data) {
+		String[] keys = data.getStringArray(KEY_BOUND_KEYS);
+		if (keys == null) {
+			return;
+		}
+		int[] opcodes = data.getIntArray(KEY_BOUND_OPCODES);
+		if (opcodes != null && opcodes.length != keys.length) {
+			PimaUtil.warn("ignoring %d opcodes for %d keys", opcodes.length, keys.length);
+			opcodes = null;
+		}
+		String hash = data.getString(KEY_LOADED_CONFIG_HASH);
+		int ignored = load(keys, opcodes, hash);
+		if (ignored > 0) {
+			PimaUtil.warn("ignoring %d key expressions", ignored);
+		}
+		PimaUtil.info("%d key bindings loaded, compiled bindings %s", mSize,
+				isCompiledCurrent() ? "used" : "not used");
+	}
+
+	/**
+	 * Replaces the table with the given bound keys, and for each the opcode
+	 * of the builtin it runs, or -1 (opcodes may be null), for the
+	 * configuration with the given hash (null if the service did not say).
+	 * Returns the number of keys that are not a single chord.
+	 */
+	int load(String[] keys, int[] opcodes, String loadedHash) {
+		clear();
+		mLoadedHash = loadedHash;
+		mServiceOpcodes = null;
+		int ignored = 0;
+		for (int i = 0; i < keys.length; i++) {
+			int c = KeyChord.parse(keys[i]);
+			if (c != 0) {
+				if (opcodes != null && opcodes[i] >= 0) {
+					if (mServiceOpcodes == null) {
+						mServiceOpcodes = new KeyBindingTable();
+					}
+					mServiceOpcodes.put(c, opcodes[i]);
+				}
+				put(c, boundValue(c));
+			} else {
+				ignored++;
+			}
+		}
+		mLoaded = true;
+		return ignored;
+	}
+
+	/**
+	 * Installs the bindings compiled from the configuration with the given
+	 * hash, or removes them if compiled is null.
+	 */
+	void setCompiled(KeyBindingTable compiled, String hash) {
+		mCompiled = compiled;
+		mCompiledHash = hash;
+		for (int i = 0; i < mKeys.length; i++) {
+			if (mKeys[i] != EMPTY) {
+				mValues[i] = boundValue(mKeys[i]);
+			}
+		}
+	}
+
+	/**
+	 * The value of a bound chord: the service's opcode if it sent one, else
+	 * the compiled one, else {@link #REMOTE}.
+	 */
+	private int boundValue(int chord) {
+		int v = mServiceOpcodes != null ? mServiceOpcodes.get(chord) : NOT_BOUND;
+		return v >= 0 ? v : compiledValue(chord);
+	}
+
+	/**
+	 * True if the compiled bindings are for the configuration the service
+	 * has loaded.
+	 */
+	boolean isCompiledCurrent() {
+		return mCompiled != null && mLoadedHash != null && mLoadedHash.equals(mCompiledHash);
+	}
+
+	private int compiledValue(int chord) {
+		int v = isCompiledCurrent() ? mCompiled.get(chord) : NOT_BOUND;
+		return v >= 0 ? v : REMOTE;
+	}
+
+	/**
+	 * Until the service has told us what it binds, every key has to be
+	 * treated as bound.
+	 */
+	boolean isLoaded() {
+		return mLoaded;
+	}
+
+	int lookup(int chord) {
+		chord = KeyChord.bindingKey(chord);
+		if (!mLoaded) {
+			// the service may still be running a configuration other than
+			// the one compiled, e.g. while a reload is in progress
+			mRemoteLookups++;
+			return REMOTE;
+		}
+		int mask = mKeys.length - 1;
+		int i = mix(chord) & mask;
+		while (true) {
+			int k = mKeys[i];
+			if (k == chord) {
+				if (mValues[i] == REMOTE) {
+					mRemoteLookups++;
+				} else {
+					mLocalLookups++;
+				}
+				return mValues[i];
+			} else if (k == EMPTY) {
+				mLocalLookups++;
+				return NOT_BOUND;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	/**
+	 * Returns the value stored for chord, NOT_BOUND if none.
+	 */
+	int get(int chord) {
+		int mask = mKeys.length - 1;
+		int i = mix(chord) & mask;
+		while (mKeys[i] != EMPTY) {
+			if (mKeys[i] == chord) {
+				return mValues[i];
+			}
+			i = (i + 1) & mask;
+		}
+		return NOT_BOUND;
+	}
+
+	/**
+	 * Returns the chords and their values, in pairs.
+	 */
+	int[] entries() {
+		int[] a = new int[mSize * 2];
+		int n = 0;
+		for (int i = 0; i < mKeys.length; i++) {
+			if (mKeys[i] != EMPTY) {
+				a[n++] = mKeys[i];
+				a[n++] = mValues[i];
+			}
+		}
+		return a;
+	}
+
+	void put(int chord, int value) {
+		if ((mSize + 1) * 2 > mKeys.length) {
+			rehash(mKeys.length * 2);
+		}
+		int mask = mKeys.length - 1;
+		int i = mix(chord) & mask;
+		while (mKeys[i] != EMPTY && mKeys[i] != chord) {
+			i = (i + 1) & mask;
+		}
+		if (mKeys[i] == EMPTY) {
+			mSize++;
+		}
+		mKeys[i] = chord;
+		mValues[i] = value;
+	}
+
+	void clear() {
+		Arrays.fill(mKeys, EMPTY);
+		mSize = 0;
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	private void rehash(int capacity) {
+		int[] keys = mKeys;
+		int[] values = mValues;
+		mKeys = newKeys(capacity);
+		mValues = new int[capacity];
+		mSize = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				put(keys[i], values[i]);
+			}
+		}
+	}
+
+	private static int[] newKeys(int capacity) {
+		int[] keys = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+		return keys;
+	}
+
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("bindings=%d local lookups=%d remote lookups=%d",
+				mSize, mLocalLookups, mRemoteLookups);
+	}
+}
@@ -0,0 +1,118 @@
+package com.mojavy.android.pima;
+
+/**
+ * Key chords packed into an int: the code point in the low 21 bits and the
+ * modifier keys above it.  The key expression string the scripts understand
+ * ("C-M-x", "F1-h", ...) is only built when a chord is actually sent to the
+ * service, and is cached afterwards, so the key path does not allocate.
+ */
+final class KeyChord {
+
+	static final int MOD_CTRL = 1 << 24;
+	static final int MOD_ALT = 1 << 25;
+	static final int MOD_F1 = 1 << 26;
+	static final int MOD_EVAL = 1 << 27;
+	static final int CODE_MASK = (1 << 21) - 1;
+
+	private static final int CACHE_SIZE = 512;
+	private static final int[] sCachedChords = new int[CACHE_SIZE];
+	private static final String[] sCachedExprs = new String[CACHE_SIZE];
+
+	private KeyChord() {
+	}
+
+	/**
+	 * Builds a chord from the modifier keys, with the same precedence as the
+	 * scripts see it: F1 is ignored when ctrl or alt is held.
+	 */
+	static int of(int code, boolean ctrl, boolean alt, boolean f1, boolean eval) {
+		int c = code & CODE_MASK;
+		if (ctrl) {
+			c |= MOD_CTRL;
+		}
+		if (alt) {
+			c |= MOD_ALT;
+		}
+		if (f1 && !ctrl && !alt) {
+			c |= MOD_F1;
+		}
+		if (eval) {
+			c |= MOD_EVAL;
+		}
+		return c;
+	}
+
+	static int code(int chord) {
+		return chord & CODE_MASK;
+	}
+
+	/**
+	 * The chord as the key binding table stores it.  Eval mode is not part
+	 * of a key expression.
+	 */
+	static int bindingKey(int chord) {
+		return chord & ~MOD_EVAL;
+	}
+
+	/**
+	 * Parses a key expression such as "C-M-x", "M-f" or "F1-h" into a chord.
+	 * Returns 0 if the expression is not a single key.
+	 */
+	static int parse(String expr) {
+		int modifiers = 0;
+		int i = 0;
+		while (true) {
+			if (expr.startsWith("C-", i) && expr.length() > i + 2) {
+				modifiers |= MOD_CTRL;
+				i += 2;
+			} else if (expr.startsWith("M-", i) && expr.length() > i + 2) {
+				modifiers |= MOD_ALT;
+				i += 2;
+			} else if (expr.startsWith("F1-", i) && expr.length() > i + 3) {
+				modifiers |= MOD_F1;
+				i += 3;
+			} else {
+				break;
+			}
+		}
+		if (i >= expr.length()) {
+			return 0;
+		}
+		int code = expr.codePointAt(i);
+		if (i + Character.charCount(code) != expr.length()) {
+			return 0;
+		}
+		return (code & CODE_MASK) | modifiers;
+	}
+
+	/**
+	 * Returns the canonical key expression of a chord.
+	 */
+	static String toExpr(int chord) {
+		int key = bindingKey(chord);
+		int slot = (key ^ (key >>> 16)) & (CACHE_SIZE - 1);
+		String s = sCachedExprs[slot];
+		if (s != null && sCachedChords[slot] == key) {
+			return s;
+		}
+		s = buildExpr(key);
+		sCachedChords[slot] = key;
+		sCachedExprs[slot] = s;
+		return s;
+	}
+
+	private static String buildExpr(int chord) {
+		StringBuilder sb = new StringBuilder(8);
+		if ((chord & MOD_CTRL) != 0) {
+			sb.append("C-");
+		}
+		if ((chord & MOD_ALT) != 0) {
+			sb.append("M-");
+		}
+		if ((chord & MOD_F1) != 0) {
+			sb.append("F1-");
+		}
+		CodePointText.append(sb, code(chord));
+		return sb.toString();
+	}
+}
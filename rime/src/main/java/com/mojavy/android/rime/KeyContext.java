@@ -0,0 +1,182 @@
+package com.mojavy.android.pima;
+
+import com.mojavy.android.pima.util.PimaServiceProxy;
+import com.mojavy.android.pima.util.PimaUtil;
+import com.mojavy.android.pima.util.Protocol;
+
+import android.os.Bundle;
+import android.view.inputmethod.InputConnection;
+
+/**
+ * The editor context the scripts see along with a key event.  Fields are
+ * only pushed to the service when they differ from what it already has: the
+ * package name once per {@link #startInput}, and the selection whenever it
+ * changes.
+ *
+ * Reading the selection or the text around the cursor is a synchronous call
+ * into the editor, so both are fetched lazily: only if the configuration
+ * reads them (the service says so under {@link #KEY_WANTS_SELECTION} and
+ * {@link #KEY_WANTS_SURROUNDING_TEXT}), and only once per key event.  The
+ * selected text is kept until {@link #updateSelection} reports new bounds,
+ * and an empty selection never asks the editor at all.
+ */
+class KeyContext {
+
+	static final String KEY_WANTS_SELECTION = "wants_selection";
+	static final String KEY_WANTS_SURROUNDING_TEXT = "wants_surrounding_text";
+	static final String KEY_TEXT_BEFORE_CURSOR = "text_before_cursor";
+	static final String KEY_TEXT_AFTER_CURSOR = "text_after_cursor";
+
+	static final int SURROUNDING_TEXT_LENGTH = 256;
+
+	private final PimaServiceProxy mProxy;
+
+	private String mPackageName;
+	private boolean mPackageSent;
+
+	private boolean mWantsSelection = true;
+	private int mSelStart = -1;
+	private int mSelEnd = -1;
+	private boolean mSelectionFetched;
+	private String mSelection;
+	private String mSentSelection;
+	private boolean mSelectionSent;
+
+	private boolean mWantsSurroundingText = false;
+	private boolean mSurroundingFetched;
+	private String mTextBefore;
+	private String mTextAfter;
+
+	int mKeys;
+	int mMessages;
+	int mEditorCalls;
+	int mEditorCallsAvoided;
+
+	KeyContext(PimaServiceProxy proxy) {
+		mProxy = proxy;
+	}
+
+	void startInput(String packageName, int selStart, int selEnd) {
+		mPackageName = packageName;
+		mPackageSent = false;
+		mSelStart = selStart;
+		mSelEnd = selEnd;
+		mSelectionFetched = false;
+		mSurroundingFetched = false;
+	}
+
+	/**
+	 * Picks up which context fields the configuration reads.
+	 */
+	void update(Bundle data) {
+		if (data.containsKey(KEY_WANTS_SELECTION)) {
+			mWantsSelection = data.getBoolean(KEY_WANTS_SELECTION);
+		}
+		if (data.containsKey(KEY_WANTS_SURROUNDING_TEXT)) {
+			mWantsSurroundingText = data.getBoolean(KEY_WANTS_SURROUNDING_TEXT);
+		}
+	}
+
+	void updateSelection(int selStart, int selEnd) {
+		if (selStart != mSelStart || selEnd != mSelEnd) {
+			mSelStart = selStart;
+			mSelEnd = selEnd;
+			mSelectionFetched = false;
+			mSurroundingFetched = false;
+		}
+	}
+
+	/**
+	 * Counts a key handled by the keyboard, whether it went to the service
+	 * or not.  Anything fetched for the previous key is forgotten.
+	 */
+	void countKey() {
+		mKeys++;
+		mSurroundingFetched = false;
+	}
+
+	/**
+	 * Counts a message sent to the service outside of {@link #flush}, i.e.
+	 * the key binding or eval request itself.
+	 */
+	void countMessage() {
+		mMessages++;
+	}
+
+	/**
+	 * Counts n messages sent outside of {@link #flush}, such as the
+	 * settings pushed along with an eval.
+	 */
+	void countMessages(int n) {
+		mMessages += n;
+	}
+
+	/**
+	 * Pushes whatever changed since the last call.
+	 */
+	void flush(InputConnection ic) {
+		if (!mPackageSent && mPackageName != null) {
+			PimaUtil.info("package name: %s", mPackageName);
+			mProxy.putCurrentData(Protocol.KEY_CURRENT_APPLICATION, mPackageName);
+			mPackageSent = true;
+			mMessages++;
+		}
+		if (mWantsSelection) {
+			String s = getSelection(ic);
+			if (!mSelectionSent || !equals(s, mSentSelection)) {
+				mProxy.putCurrentData(Protocol.KEY_TEXT_SELECTION, s);
+				mSentSelection = s;
+				mSelectionSent = true;
+				mMessages++;
+			}
+		}
+		if (mWantsSurroundingText && !mSurroundingFetched && ic != null) {
+			CharSequence before = ic.getTextBeforeCursor(SURROUNDING_TEXT_LENGTH, 0);
+			CharSequence after = ic.getTextAfterCursor(SURROUNDING_TEXT_LENGTH, 0);
+			mEditorCalls += 2;
+			mSurroundingFetched = true;
+			String b = before != null ? before.toString() : null;
+			String a = after != null ? after.toString() : null;
+			if (!equals(b, mTextBefore)) {
+				mProxy.putCurrentData(KEY_TEXT_BEFORE_CURSOR, b);
+				mTextBefore = b;
+				mMessages++;
+			}
+			if (!equals(a, mTextAfter)) {
+				mProxy.putCurrentData(KEY_TEXT_AFTER_CURSOR, a);
+				mTextAfter = a;
+				mMessages++;
+			}
+		} else if (mWantsSurroundingText) {
+			// already fetched for this key
+			mEditorCallsAvoided += 2;
+		}
+	}
+
+	private String getSelection(InputConnection ic) {
+		if (mSelectionFetched) {
+			mEditorCallsAvoided++;
+		} else if (mSelStart == mSelEnd) {
+			mEditorCallsAvoided++;
+			mSelection = null;
+			mSelectionFetched = true;
+		} else if (ic != null) {
+			CharSequence s = ic.getSelectedText(0);
+			mEditorCalls++;
+			mSelection = s != null ? s.toString() : null;
+			mSelectionFetched = true;
+		}
+		return mSelection;
+	}
+
+	private static boolean equals(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("keys=%d messages=%d (%.2f/key) editor calls=%d avoided=%d",
+				mKeys, mMessages, mKeys > 0 ? (double) mMessages / mKeys : 0.0,
+				mEditorCalls, mEditorCallsAvoided);
+	}
+}
@@ -0,0 +1,299 @@
+package com.mojavy.android.pima;
+
+import java.util.LinkedList;
+
+import com.mojavy.android.pima.util.PimaCallback;
+import com.mojavy.android.pima.util.PimaUtil;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+import android.os.RemoteException;
+
+/**
+ * Pipelines key events through the script service.  Every key gets a
+ * sequence number and up to {@link #DEFAULT_WINDOW} bindings may be in
+ * flight at once, but results are always applied in keystroke order.  A
+ * key whose binding has not answered within the timeout falls back to the
+ * plain character, and its late reply is dropped.
+ *
+ * Keys which do not need the service at all, plain characters and keys
+ * bound to a builtin the keyboard runs itself, are queued behind pending
+ * ones only while something is in flight, so the common path stays
+ * synchronous.  Keys dispatched while an entry is being applied, e.g. a
+ * held back key being replayed, take that entry's place in the order.
+ */
+class KeyDispatcher {
+
+	interface Target {
+		/** sends a key to the script service */
+		void send(String key, int code, PimaCallback callback) throws RemoteException;
+		/** called as soon as a reply arrives, before it is ordered */
+		void received(Message msg);
+		/** applies a reply from the script service */
+		void commit(Message msg);
+		/** handles a key without the script service */
+		void fallback(int code);
+		/**
+		 * runs a key which was held back while bindings were pending, with
+		 * the modifier state it was pressed with
+		 */
+		void replay(int code, int meta);
+		/** runs a builtin (a Protocol.BUILTIN_* id) a key is bound to */
+		void builtin(int opcode);
+	}
+
+	static final String KEY_TIMEOUT = "keybind_timeout";
+
+	static final int DEFAULT_WINDOW = 8;
+	static final long DEFAULT_TIMEOUT_MS = 2000;
+
+	private static final int KIND_REMOTE = 0;
+	private static final int KIND_LOCAL = 1;
+	private static final int KIND_DEFERRED = 2;
+	private static final int KIND_BUILTIN = 3;
+
+	private static final int STATE_QUEUED = 0;
+	private static final int STATE_SENT = 1;
+	private static final int STATE_DONE = 2;
+
+	private class Entry implements Runnable {
+		final int seq;
+		final int kind;
+		/** the key's code, or the opcode of a builtin */
+		final int code;
+		final String key;
+		/** the modifier state of a deferred key, as the target encodes it */
+		int meta;
+		int state = STATE_QUEUED;
+		Message result;
+
+		Entry(int kind, int code, String key) {
+			this.seq = mNextSeq++;
+			this.kind = kind;
+			this.code = code;
+			this.key = key;
+		}
+
+		/** timeout */
+		@Override
+		public void run() {
+			if (state == STATE_SENT) {
+				PimaUtil.warn("key %d (%s) timed out", seq, key);
+				mTimeouts++;
+				complete(this, null);
+				pump();
+			}
+		}
+	}
+
+	private final Target mTarget;
+	private final Handler mHandler = new Handler();
+	private final LinkedList<Entry> mQueue = new LinkedList<Entry>();
+	private int mNextSeq;
+	private int mInFlight;
+	private int mWindow = DEFAULT_WINDOW;
+	private long mTimeout = DEFAULT_TIMEOUT_MS;
+	private boolean mDraining;
+	private boolean mApplying;
+	private int mInserted;
+	private boolean mPumping;
+	private boolean mPumpAgain;
+
+	int mTimeouts;
+	int mLateReplies;
+
+	KeyDispatcher(Target target) {
+		mTarget = target;
+	}
+
+	void setWindow(int window) {
+		mWindow = Math.max(1, window);
+	}
+
+	void setTimeout(long timeout) {
+		mTimeout = timeout;
+	}
+
+	long getTimeout() {
+		return mTimeout;
+	}
+
+	/**
+	 * Picks up a timeout pushed by the service along with a reply.
+	 */
+	void update(Bundle data) {
+		long timeout = data.getLong(KEY_TIMEOUT, 0);
+		if (timeout > 0) {
+			mTimeout = timeout;
+		}
+	}
+
+	/**
+	 * True while earlier keys are still waiting for the service, i.e. when
+	 * anything touching the editor has to be queued.  While an entry is
+	 * being applied, only what it has queued itself comes first.
+	 */
+	boolean isBusy() {
+		if (mApplying) {
+			return mInserted > 0;
+		}
+		return mDraining || !mQueue.isEmpty();
+	}
+
+	void dispatchRemote(String key, int code) {
+		enqueue(new Entry(KIND_REMOTE, code, key));
+		pump();
+	}
+
+	void dispatchLocal(int code) {
+		if (!isBusy()) {
+			mTarget.fallback(code);
+			return;
+		}
+		Entry e = new Entry(KIND_LOCAL, code, null);
+		e.state = STATE_DONE;
+		enqueue(e);
+	}
+
+	void dispatchBuiltin(int opcode) {
+		if (!isBusy()) {
+			mTarget.builtin(opcode);
+			return;
+		}
+		Entry e = new Entry(KIND_BUILTIN, opcode, null);
+		e.state = STATE_DONE;
+		enqueue(e);
+	}
+
+	/**
+	 * Holds back a key until the keys before it are done.  meta is handed
+	 * back to {@link Target#replay} as is.
+	 */
+	void defer(int code, int meta) {
+		Entry e = new Entry(KIND_DEFERRED, code, null);
+		e.meta = meta;
+		e.state = STATE_DONE;
+		enqueue(e);
+	}
+
+	private void enqueue(Entry e) {
+		if (mApplying) {
+			// ahead of the keys pressed after the one being applied
+			mQueue.add(mInserted++, e);
+		} else {
+			mQueue.add(e);
+		}
+	}
+
+	/**
+	 * Forgets everything pending, e.g. when the editor goes away.  Replies
+	 * still on their way are ignored.
+	 */
+	void reset() {
+		if (!mQueue.isEmpty()) {
+			PimaUtil.warn("dropping %d pending keys", mQueue.size());
+		}
+		for (Entry e : mQueue) {
+			mHandler.removeCallbacks(e);
+			if (e.result != null) {
+				e.result.recycle();
+			}
+			e.state = STATE_DONE;
+		}
+		mQueue.clear();
+		mInFlight = 0;
+		mInserted = 0;
+	}
+
+	private void pump() {
+		// replies and replayed keys may come back in here, so only the
+		// outermost call walks the queue.
+		if (mPumping) {
+			mPumpAgain = true;
+			return;
+		}
+		mPumping = true;
+		try {
+			do {
+				mPumpAgain = false;
+				for (Entry e : mQueue) {
+					if (mInFlight >= mWindow) {
+						break;
+					}
+					if (e.kind == KIND_REMOTE && e.state == STATE_QUEUED) {
+						send(e);
+					}
+				}
+				drain();
+			} while (mPumpAgain);
+		} finally {
+			mPumping = false;
+		}
+	}
+
+	private void send(final Entry e) {
+		e.state = STATE_SENT;
+		mInFlight++;
+		try {
+			mTarget.send(e.key, e.code, new PimaCallback() {
+				@Override
+				public void call(Message msg) {
+					mTarget.received(msg);
+					if (e.state != STATE_SENT) {
+						mLateReplies++;
+						return;
+					}
+					mHandler.removeCallbacks(e);
+					// the message is recycled once we return
+					complete(e, Message.obtain(msg));
+					pump();
+				}
+			});
+			mHandler.postDelayed(e, mTimeout);
+		} catch (RemoteException ex) {
+			ex.printStackTrace();
+			complete(e, null);
+		}
+	}
+
+	private void complete(Entry e, Message result) {
+		e.state = STATE_DONE;
+		e.result = result;
+		mInFlight--;
+	}
+
+	private void drain() {
+		mDraining = true;
+		try {
+			while (!mQueue.isEmpty() && mQueue.getFirst().state == STATE_DONE) {
+				Entry e = mQueue.removeFirst();
+				mApplying = true;
+				mInserted = 0;
+				try {
+					if (e.kind == KIND_DEFERRED) {
+						mTarget.replay(e.code, e.meta);
+					} else if (e.kind == KIND_BUILTIN) {
+						mTarget.builtin(e.code);
+					} else if (e.result != null) {
+						mTarget.commit(e.result);
+						e.result.recycle();
+					} else {
+						mTarget.fallback(e.code);
+					}
+				} finally {
+					mApplying = false;
+					mInserted = 0;
+				}
+			}
+		} finally {
+			mDraining = false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("pending=%d inflight=%d timeouts=%d late=%d",
+				mQueue.size(), mInFlight, mTimeouts, mLateReplies);
+	}
+}
@@ -0,0 +1,199 @@
+package com.mojavy.android.pima;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A recorded key macro, compiled to what each key resolved to at record
+ * time rather than the keys themselves, so that playing it back needs no
+ * round trips to the script service.  Actions are packed into an int array,
+ * the type in the high byte and the argument below.
+ */
+class Keymacro {
+
+	/**
+	 * What playing a keymacro does to the editor.
+	 */
+	interface Player {
+		void commitText(CharSequence text);
+		/** deletes the character before the cursor */
+		void delete();
+		void sendKey(int keyCode);
+		void builtin(int opcode);
+	}
+
+	/** insert a code point */
+	static final int TEXT = 1;
+	/** commit the string at the given index */
+	static final int STRING = 2;
+	/** run a builtin (a Protocol.BUILTIN_* id) */
+	static final int BUILTIN = 3;
+	/** delete the character before the cursor */
+	static final int DELETE = 4;
+	/** send a key event (a KeyEvent.KEYCODE_*) */
+	static final int KEY = 5;
+
+	private static final int ARG_MASK = (1 << 24) - 1;
+
+	private int[] mActions = new int[64];
+	private int mSize;
+	private final List<String> mStrings = new ArrayList<String>();
+
+	static int type(int action) {
+		return action >>> 24;
+	}
+
+	static int arg(int action) {
+		return action & ARG_MASK;
+	}
+
+	void clear() {
+		mSize = 0;
+		mStrings.clear();
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	int get(int i) {
+		return mActions[i];
+	}
+
+	String getString(int action) {
+		return mStrings.get(arg(action));
+	}
+
+	void add(int type, int arg) {
+		if (mSize == mActions.length) {
+			int[] a = new int[mActions.length * 2];
+			System.arraycopy(mActions, 0, a, 0, mSize);
+			mActions = a;
+		}
+		mActions[mSize++] = (type << 24) | (arg & ARG_MASK);
+	}
+
+	void addString(String s) {
+		mStrings.add(s);
+		add(STRING, mStrings.size() - 1);
+	}
+
+	/**
+	 * True if a backspace is to be recorded.  The keys of an eval
+	 * expression are not, only its result, so neither are the backspaces
+	 * that edit it: played back, they would delete text in the editor.
+	 */
+	static boolean recordsBackspace(boolean eval, int composingLength) {
+		return !eval || composingLength == 0;
+	}
+
+	/**
+	 * Plays the actions to player.  Runs of text are committed together; a
+	 * delete just after text takes back the text's last character instead
+	 * of going to the editor.
+	 */
+	void play(Player player) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < mSize; i++) {
+			int action = get(i);
+			switch (type(action)) {
+			case TEXT:
+				CodePointText.append(text, arg(action));
+				break;
+			case STRING:
+				text.append(getString(action));
+				break;
+			case DELETE:
+				if (text.length() > 0) {
+					text.delete(text.offsetByCodePoints(text.length(), -1), text.length());
+				} else {
+					player.delete();
+				}
+				break;
+			case KEY:
+				commit(player, text);
+				player.sendKey(arg(action));
+				break;
+			case BUILTIN:
+				commit(player, text);
+				player.builtin(arg(action));
+				break;
+			}
+		}
+		commit(player, text);
+	}
+
+	private static void commit(Player player, StringBuilder text) {
+		if (text.length() > 0) {
+			player.commitText(text);
+			text.setLength(0);
+		}
+	}
+
+	/**
+	 * The number of bytes {@link #writeTo} needs.
+	 */
+	int byteSize() {
+		int n = 4 + mSize * 4 + 4;
+		for (String s : mStrings) {
+			n += 4 + s.length() * 2;
+		}
+		return n;
+	}
+
+	void writeTo(ByteBuffer buf) {
+		buf.putInt(mSize);
+		buf.asIntBuffer().put(mActions, 0, mSize);
+		buf.position(buf.position() + mSize * 4);
+		buf.putInt(mStrings.size());
+		for (String s : mStrings) {
+			putString(buf, s);
+		}
+	}
+
+	/**
+	 * Reads a keymacro written by {@link #writeTo}.  Counts are checked
+	 * against what is left in buf before anything is allocated, so a
+	 * corrupted file fails with an exception rather than running out of
+	 * memory.
+	 */
+	static Keymacro readFrom(ByteBuffer buf) {
+		Keymacro m = new Keymacro();
+		int size = checkCount(buf.getInt(), buf, 4);
+		m.mActions = new int[Math.max(64, size)];
+		buf.asIntBuffer().get(m.mActions, 0, size);
+		buf.position(buf.position() + size * 4);
+		m.mSize = size;
+		int strings = checkCount(buf.getInt(), buf, 4);
+		for (int i = 0; i < strings; i++) {
+			m.mStrings.add(getString(buf));
+		}
+		return m;
+	}
+
+	static void putString(ByteBuffer buf, String s) {
+		buf.putInt(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			buf.putChar(s.charAt(i));
+		}
+	}
+
+	static String getString(ByteBuffer buf) {
+		int n = checkCount(buf.getInt(), buf, 2);
+		char[] chars = new char[n];
+		buf.asCharBuffer().get(chars);
+		buf.position(buf.position() + n * 2);
+		return new String(chars);
+	}
+
+	/**
+	 * Returns count if buf has room for that many items of the given size.
+	 */
+	static int checkCount(int count, ByteBuffer buf, int itemBytes) {
+		if (count < 0 || count > buf.remaining() / itemBytes) {
+			throw new IllegalArgumentException("bad count " + count);
+		}
+		return count;
+	}
+}
@@ -0,0 +1,134 @@
+package com.mojavy.android.pima;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.mojavy.android.pima.util.PimaUtil;
+
+/**
+ * Named keymacro registers, kept in a compact binary file in the app's
+ * private storage so that macros survive the keyboard being restarted.
+ *
+ * The file is a magic number and a version, the register count, and then
+ * for each register its name followed by {@link Keymacro#writeTo}.  It is
+ * read in one go and decoded from a buffer, and written to a temporary file
+ * which is renamed over the old one, on a single background thread so
+ * that saves are written in order.
+ */
+class KeymacroStore {
+
+	/** the register a keymacro builtin refers to, "" if none */
+	static final String KEY_KEYMACRO_REGISTER = "keymacro_register";
+
+	private static final int MAGIC = 0x524b4d31; // RKM1
+	private static final int VERSION = 2;
+
+	private final File mFile;
+	private final Map<String, Keymacro> mRegisters = new HashMap<String, Keymacro>();
+	private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+
+	KeymacroStore(File file) {
+		mFile = file;
+	}
+
+	/**
+	 * Returns the named register, creating an empty one if needed.
+	 */
+	Keymacro get(String name) {
+		Keymacro m = mRegisters.get(name);
+		if (m == null) {
+			m = new Keymacro();
+			mRegisters.put(name, m);
+		}
+		return m;
+	}
+
+	void load() {
+		if (!mFile.exists()) {
+			return;
+		}
+		try {
+			byte[] bytes = new byte[(int) mFile.length()];
+			FileInputStream in = new FileInputStream(mFile);
+			try {
+				int n = 0;
+				while (n < bytes.length) {
+					int r = in.read(bytes, n, bytes.length - n);
+					if (r < 0) {
+						throw new IOException("truncated");
+					}
+					n += r;
+				}
+			} finally {
+				in.close();
+			}
+			ByteBuffer buf = ByteBuffer.wrap(bytes);
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+				PimaUtil.warn("ignoring keymacro file of unknown format");
+				return;
+			}
+			// each register takes at least its name's and two counts
+			int count = Keymacro.checkCount(buf.getInt(), buf, 12);
+			for (int i = 0; i < count; i++) {
+				String name = Keymacro.getString(buf);
+				mRegisters.put(name, Keymacro.readFrom(buf));
+			}
+			PimaUtil.info("%d keymacro registers loaded", count);
+		} catch (IOException e) {
+			PimaUtil.error("failed to load keymacros: %s", e.toString());
+		} catch (RuntimeException e) {
+			// a corrupted file must not keep the keyboard from starting
+			PimaUtil.error("failed to load keymacros: %s", e.toString());
+			mRegisters.clear();
+		}
+	}
+
+	/**
+	 * Writes all registers out on the writer thread.
+	 */
+	void save() {
+		int size = 12;
+		for (Map.Entry<String, Keymacro> e : mRegisters.entrySet()) {
+			size += 4 + e.getKey().length() * 2 + e.getValue().byteSize();
+		}
+		final ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(mRegisters.size());
+		for (Map.Entry<String, Keymacro> e : mRegisters.entrySet()) {
+			Keymacro.putString(buf, e.getKey());
+			e.getValue().writeTo(buf);
+		}
+		mWriter.execute(new Runnable() {
+			@Override
+			public void run() {
+				write(buf.array());
+			}
+		});
+	}
+
+	private void write(byte[] bytes) {
+		File tmp = new File(mFile.getPath() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(bytes);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(mFile)) {
+				throw new IOException("rename failed");
+			}
+		} catch (IOException e) {
+			PimaUtil.error("failed to save keymacros: %s", e.toString());
+		}
+	}
+}
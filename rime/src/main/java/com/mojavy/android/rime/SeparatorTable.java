@@ -0,0 +1,59 @@
+package com.mojavy.android.pima;
+
+import java.util.Arrays;
+
+/**
+ * A set of word separators, looked up by code point without allocating:
+ * a bit per character of the basic multilingual plane, and a sorted array
+ * for the rare separator outside it.
+ */
+class SeparatorTable {
+
+	/** separators set by the script, replacing the built in ones */
+	static final String KEY_WORD_SEPARATORS = "word_separators";
+
+	private static final int[] NO_CODE_POINTS = new int[0];
+
+	private final String mSource;
+	private final long[] mBmp = new long[(Character.MAX_VALUE + 1) / 64];
+	private final int[] mSupplementary;
+
+	SeparatorTable(String separators) {
+		mSource = separators;
+		int[] supplementary = NO_CODE_POINTS;
+		int n = 0;
+		for (int i = 0; i < separators.length(); ) {
+			int c = separators.codePointAt(i);
+			i += Character.charCount(c);
+			if (c <= Character.MAX_VALUE) {
+				mBmp[c >>> 6] |= 1L << c;
+			} else {
+				if (n == supplementary.length) {
+					int[] a = new int[n + 4];
+					System.arraycopy(supplementary, 0, a, 0, n);
+					supplementary = a;
+				}
+				supplementary[n++] = c;
+			}
+		}
+		mSupplementary = new int[n];
+		System.arraycopy(supplementary, 0, mSupplementary, 0, n);
+		Arrays.sort(mSupplementary);
+	}
+
+	/**
+	 * The string the table was built from.
+	 */
+	String getSource() {
+		return mSource;
+	}
+
+	boolean contains(int code) {
+		if (code < 0) {
+			return false;
+		} else if (code <= Character.MAX_VALUE) {
+			return (mBmp[code >>> 6] & (1L << code)) != 0;
+		}
+		return mSupplementary.length > 0 && Arrays.binarySearch(mSupplementary, code) >= 0;
+	}
+}
@@ -1,6 +1,8 @@
 package com.mojavy.android.pima;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.mojavy.android.pima.util.PimaUtil;
 import com.mojavy.android.pima.util.Configuration;
@@ -11,8 +13,16 @@ import android.widget.TextView;
 
 public class SettingActivity extends Activity {
 	
+	/**
+	 * Reads and writes the configuration off the main thread, one at a time
+	 * so a load never overtakes the save before it.
+	 */
+	private static final ExecutorService sIo = Executors.newSingleThreadExecutor();
+	
 	TextView mTextView;
 	Configuration mConfiguration = null;
+	/** the contents as loaded or last saved, null until loaded */
+	String mContents;
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -33,21 +43,51 @@ public class SettingActivity extends Activity {
 	protected void onResume() {
 		super.onResume();
 		
-		String s = mConfiguration.getConfigurationContents();
-		PimaUtil.info("settings: %s", s);
+		// nothing to edit, or to save, until the contents are in
+		mContents = null;
 		if (mTextView != null)
-			mTextView.setText(s);		
+			mTextView.setEnabled(false);
+		final Configuration configuration = mConfiguration;
+		sIo.execute(new Runnable() {
+			public void run() {
+				final String s = configuration.getConfigurationContents();
+				runOnUiThread(new Runnable() {
+					public void run() {
+						PimaUtil.info("settings: %d chars", s != null ? s.length() : 0);
+						mContents = s != null ? s : "";
+						if (mTextView != null) {
+							mTextView.setText(mContents);
+							mTextView.setEnabled(true);
+						}
+					}
+				});
+			}
+		});
 	}
 
 	@Override
 	protected void onPause() {
 		super.onPause();
 
-		try {
-			mConfiguration.saveConfiguration(mTextView.getText().toString());
-		} catch (IOException e) {
-			PimaUtil.error("failed to save conf: %s", e.toString());
+		if (mContents == null || mTextView == null) {
+			// still loading, so the view does not hold the configuration
+			return;
+		}
+		final String s = mTextView.getText().toString();
+		if (s.equals(mContents)) {
+			return;
 		}
+		mContents = s;
+		final Configuration configuration = mConfiguration;
+		sIo.execute(new Runnable() {
+			public void run() {
+				try {
+					configuration.saveConfiguration(s);
+				} catch (IOException e) {
+					PimaUtil.error("failed to save conf: %s", e.toString());
+				}
+			}
+		});
 	}
 
 }
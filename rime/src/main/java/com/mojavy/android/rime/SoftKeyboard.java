@@ -20,6 +20,7 @@ import android.inputmethodservice.InputMethodService;
 import android.inputmethodservice.Keyboard;
 import android.inputmethodservice.KeyboardView;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.Message;
 import android.os.RemoteException;
 import android.text.method.MetaKeyKeyListener;
@@ -38,10 +39,22 @@ import android.view.inputmethod.InputMethodManager;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.mojavy.android.pima.R;
+import com.mojavy.android.pima.dict.MappedDictionary;
+import com.mojavy.android.pima.dict.UserHistory;
+import com.mojavy.android.pima.util.Configuration;
 import com.mojavy.android.pima.util.PimaCallback;
 import com.mojavy.android.pima.util.PimaServiceProxy;
 import com.mojavy.android.pima.util.PimaUtil;
@@ -62,14 +75,81 @@ public class SoftKeyboard extends InputMethodService
 	private static final int PIMA_KEYCODE_F1 = -104;
 	private static final int PIMA_KEYCODE_EVAL = -103;
 	
+	private static final String KEYMACRO_FILE = "keymacros.bin";
+	private static final int TEXT_MIRROR_TOKEN = 0x70696d61;
+	private static final int TEXT_WINDOW_CHARS = 4096;
+	// per side of the cursor: 16K chars, 32 KB as UTF-16, well within a Binder transaction
+	private static final int TEXT_WINDOW_MAX_CHARS = 16 << 10;
+	private static final String DICTIONARY_ASSET = "words.dict";
+	private static final int MAX_CANDIDATES = 16;
+	private static final String HISTORY_NAME = "history";
+	private static final String BINDINGS_FILE = "bindings.bin";
+	
+	// the modifier state of a key held back by the dispatcher
+	private static final int NO_META = -1;
+	private static final int META_CTRL = 1;
+	private static final int META_ALT = 2;
+	private static final int META_F1 = 4;
+	private static final int META_EVAL = 8;
+	private static final int META_SHIFT = 16;
+	
 	ExtractedTextRequest mTextRequest;
+	TextMirror mMirror = new TextMirror(TEXT_WINDOW_CHARS, TEXT_WINDOW_MAX_CHARS);
 	Keyboard.Key mCtrl;
 	Keyboard.Key mAlt;
 	Keyboard.Key mF1;
 	Keyboard.Key mEval;
+	int mReplayMeta = NO_META;
 	boolean mKeymacroRecording = false;
 	boolean mKeymacroPlaying = false;
-	List<Integer> mKeymacroKeyEvents = new ArrayList<Integer>();
+	KeymacroStore mKeymacros;
+	Keymacro mKeymacro;
+	KeyBindingTable mBindings = new KeyBindingTable();
+	BindingCompiler mBindingCompiler;
+	private final ExecutorService mCompileExecutor = Executors.newSingleThreadExecutor();
+	private final AtomicInteger mCompileGeneration = new AtomicInteger();
+	KeyDispatcher mDispatcher = new KeyDispatcher(new KeyDispatcher.Target() {
+		@Override
+		public void send(String key, int code, PimaCallback callback) throws RemoteException {
+			mKeyContext.flush(getCurrentInputConnection());
+			mKeyContext.countMessages(mEvalBudget.send());
+			mKeyContext.countMessage();
+			mProxy.callKeyBind(key, code, callback);
+		}
+		@Override
+		public void received(Message msg) {
+			onServiceReply(msg);
+		}
+		@Override
+		public void commit(Message msg) {
+			performReply(msg);
+		}
+		@Override
+		public void fallback(int code) {
+			handleCharImpl(code);
+		}
+		@Override
+		public void replay(int code, int meta) {
+			// as pressed, not with the modifiers that are on now
+			int now = currentMeta();
+			setModifiers(meta);
+			mReplayMeta = meta;
+			try {
+				onKey(code, null);
+			} finally {
+				mReplayMeta = NO_META;
+				setModifiers(now);
+			}
+		}
+		@Override
+		public void builtin(int opcode) {
+			if (performBuiltin(opcode)) {
+				recordKeymacro(Keymacro.BUILTIN, opcode);
+			} else {
+				PimaUtil.warn("no local builtin %d", opcode);
+			}
+		}
+	});
 	
     static final boolean DEBUG = false;
     
@@ -86,8 +166,22 @@ public class SoftKeyboard extends InputMethodService
     private KeyboardView mInputView;
     private CandidateView mCandidateView;
     private CompletionInfo[] mCompletions;
+    private List<String> mCandidates;
+    private CandidateWorker mCandidateWorker;
+    private UserHistory mHistory;
+    private String mLastWord;
     
     private StringBuilder mComposing = new StringBuilder();
+    private final CodePointText mCodePoint = new CodePointText();
+    private boolean mComposingChanged;
+    private final Handler mHandler = new Handler();
+    private final Runnable mComposingFlusher = new Runnable() {
+        public void run() {
+            flushComposing();
+        }
+    };
+    private final CallRate mEditorCalls = new CallRate();
+    private final CapsModeTracker mCapsMode = new CapsModeTracker();
     private boolean mPredictionOn;
     private boolean mCompletionOn;
     private int mLastDisplayWidth;
@@ -100,8 +194,23 @@ public class SoftKeyboard extends InputMethodService
     private LatinKeyboard mQwertyKeyboard;
     
     private LatinKeyboard mCurKeyboard;    
-    private String mWordSeparators;
+    private SeparatorTable mWordSeparators;
+    private final SeparatorTable mEvalSeparators = new SeparatorTable("\n");
     PimaServiceProxy mProxy;
+    KeyContext mKeyContext;
+    EvalStream mEvalStream;
+    EvalBudget mEvalBudget;
+    private final Runnable mEvalWatchdog = new Runnable() {
+        public void run() {
+            if (mEvalStream.isActive()) {
+                PimaUtil.warn("eval did not finish in time");
+                mEvalBudget.mWatchdogFired++;
+                mKeyContext.countMessages(mEvalStream.cancel());
+                endEvalStream(true);
+                showToast("eval timed out");
+            }
+        }
+    };
     LayoutInflater mInflater = getLayoutInflater();
     
     private void showToast(String text) {
@@ -118,17 +227,46 @@ public class SoftKeyboard extends InputMethodService
      */
     @Override public void onCreate() {
         super.onCreate();
-        mWordSeparators = getResources().getString(R.string.word_separators);
+        mWordSeparators = new SeparatorTable(getResources().getString(R.string.word_separators));
         Log.i("my", "oncreate!");
         
         mProxy = new PimaServiceProxy(this);
         mProxy.bindService();  
+        mKeyContext = new KeyContext(mProxy);
+        mEvalStream = new EvalStream(mProxy);
+        mEvalBudget = new EvalBudget(new EvalBudget.Sink() {
+            public void put(String key, String value) {
+                mProxy.putCurrentData(key, value);
+            }
+        });
+        mKeymacros = new KeymacroStore(new File(getFilesDir(), KEYMACRO_FILE));
+        mKeymacros.load();
+        mHistory = new UserHistory(getFilesDir(), HISTORY_NAME);
+        mHistory.load();
+        mCandidateWorker = new CandidateWorker(mHistory, MAX_CANDIDATES,
+                new CandidateWorker.Listener() {
+            public void onCandidates(List<String> candidates, boolean typedWordValid) {
+                mCandidates = candidates;
+                setSuggestions(candidates, true, typedWordValid);
+            }
+        });
+        loadDictionary();
+        mBindingCompiler = new BindingCompiler(new File(getFilesDir(), BINDINGS_FILE));
+        compileBindings();
         mTextRequest = new ExtractedTextRequest();
-        mTextRequest.hintMaxChars = 655350;
-        mTextRequest.hintMaxLines= 65535;
+        mTextRequest.hintMaxChars = TEXT_WINDOW_CHARS;
+        mTextRequest.hintMaxLines = TEXT_WINDOW_CHARS / 16;
+        mTextRequest.token = TEXT_MIRROR_TOKEN;
                 
     }
     
+    @Override public void onDestroy() {
+        discardComposing();
+        mCandidateWorker.quit();
+        mCompileExecutor.shutdown();
+        super.onDestroy();
+    }
+    
     /**
      * This is the point where you can do all of your UI initialization.  It
      * is called after creation and any configuration change.
@@ -194,7 +332,18 @@ public class SoftKeyboard extends InputMethodService
         
         // Reset our state.  We want to do this even if restarting, because
         // the underlying state of the text editor could have changed in any way.
+        mDispatcher.reset();
+        mKeyContext.countMessages(mEvalStream.cancel());
+        // the service may have been restarted since they were sent
+        mEvalStream.reset();
+        mEvalBudget.reset();
+        mKeyContext.startInput(attribute.packageName,
+                attribute.initialSelStart, attribute.initialSelEnd);
+        mMirror.invalidate();
+        mCapsMode.startInput(attribute.initialSelStart);
         mComposing.setLength(0);
+        discardComposing();
+        mLastWord = null;
         updateCandidates();
         
         if (!restarting) {
@@ -284,8 +433,21 @@ public class SoftKeyboard extends InputMethodService
         super.onFinishInput();
         
         // Clear current composing text and candidates.
+        mDispatcher.reset();
+        mKeyContext.countMessages(mEvalStream.cancel());
         mComposing.setLength(0);
+        discardComposing();
         updateCandidates();
+        PimaUtil.info("editor: %s", mEditorCalls);
+        PimaUtil.info("caps mode: %s", mCapsMode);
+        PimaUtil.info("eval stream: %s", mEvalStream);
+        PimaUtil.info("eval budget: %s", mEvalBudget);
+        PimaUtil.info("key bindings: %s", mBindings);
+        PimaUtil.info("key dispatch: %s", mDispatcher);
+        PimaUtil.info("key context: %s", mKeyContext);
+        PimaUtil.info("text mirror: %s", mMirror);
+        PimaUtil.info("user history: %d words", mHistory.size());
+        PimaUtil.info("candidates: %s", mCandidateWorker);
         
         // We only hide the candidates window when finishing input on
         // a particular editor, to avoid popping the underlying application
@@ -314,12 +476,16 @@ public class SoftKeyboard extends InputMethodService
             int candidatesStart, int candidatesEnd) {
         super.onUpdateSelection(oldSelStart, oldSelEnd, newSelStart, newSelEnd,
                 candidatesStart, candidatesEnd);
+        mKeyContext.updateSelection(newSelStart, newSelEnd);
+        mMirror.updateSelection(newSelStart, newSelEnd);
+        mCapsMode.updateSelection(newSelStart, newSelEnd, candidatesStart, candidatesEnd);
         
         // If the current selection in the text view changes, we should
         // clear whatever candidate text we have.
         if (mComposing.length() > 0 && (newSelStart != candidatesEnd
                 || newSelEnd != candidatesEnd)) {
             mComposing.setLength(0);
+            discardComposing();
             updateCandidates();
             InputConnection ic = getCurrentInputConnection();
             if (ic != null) {
@@ -328,6 +494,21 @@ public class SoftKeyboard extends InputMethodService
         }
     }
 
+    /**
+     * The editor reports changes to the text we are monitoring, either for
+     * our own text mirror or for the fullscreen extract view.
+     */
+    @Override public void onUpdateExtractedText(int token, ExtractedText text) {
+        super.onUpdateExtractedText(token, text);
+        if (token == TEXT_MIRROR_TOKEN) {
+            mMirror.update(text);
+        } else if (mMirror.isMonitored()) {
+            // the editor only reports changes for the last request it was
+            // asked to monitor, so the mirror is no longer kept current
+            mMirror.invalidate();
+        }
+    }
+
     /**
      * This tells us about completions that the editor has determined based
      * on the current text in it.  We want to use this in fullscreen mode
@@ -479,17 +660,67 @@ public class SoftKeyboard extends InputMethodService
      */
     private void commitTyped(InputConnection inputConnection) {
         if (mComposing.length() > 0) {
+        	// committing replaces the composing text, whatever the editor
+        	// has been shown of it so far
+        	discardComposing();
         	if (mEval.on) {        	
         		handleEval(mComposing.toString());
         		mComposing.setLength(0);
         	} else {        		
 	            inputConnection.commitText(mComposing, mComposing.length());
+	            mEditorCalls.count();
+	            mCapsMode.committed(mComposing);
+	            String word = mComposing.toString();
+	            mHistory.record(mLastWord, word);
+	            mLastWord = word;
 	            mComposing.setLength(0);
             	updateCandidates();
         	}
         }
     }
 
+    /**
+     * Notes that mComposing has changed.  The editor is told once the keys
+     * already queued have been handled, so a burst of keys costs one
+     * update instead of one per key.
+     */
+    private void composingChanged() {
+        if (!mComposingChanged) {
+            mComposingChanged = true;
+            mHandler.post(mComposingFlusher);
+        }
+    }
+    
+    /**
+     * Shows the editor the current composing text now, if it has changed.
+     * Anything sending text or keys past the composing text calls this
+     * first, so the editor sees the changes in order.
+     */
+    private void flushComposing() {
+        if (!mComposingChanged) {
+            return;
+        }
+        discardComposing();
+        InputConnection ic = getCurrentInputConnection();
+        if (ic != null) {
+            ic.beginBatchEdit();
+            ic.setComposingText(mComposing, 1);
+            mEditorCalls.count();
+            updateShiftKeyState(getCurrentInputEditorInfo());
+            ic.endBatchEdit();
+        }
+        updateCandidates();
+    }
+    
+    /**
+     * Forgets a pending composing update, when the composing text is about
+     * to be replaced anyway.
+     */
+    private void discardComposing() {
+        mComposingChanged = false;
+        mHandler.removeCallbacks(mComposingFlusher);
+    }
+
     /**
      * Helper to update the shift state of our keyboard based on the initial
      * editor state.
@@ -500,7 +731,8 @@ public class SoftKeyboard extends InputMethodService
             int caps = 0;
             EditorInfo ei = getCurrentInputEditorInfo();
             if (ei != null && ei.inputType != EditorInfo.TYPE_NULL) {
-                caps = getCurrentInputConnection().getCursorCapsMode(attr.inputType);
+                caps = mCapsMode.getCapsMode(getCurrentInputConnection(),
+                        attr.inputType, mComposing);
             }
             mInputView.setShifted(mCapsLock || caps != 0);
         }
@@ -521,6 +753,10 @@ public class SoftKeyboard extends InputMethodService
      * Helper to send a key down / key up pair to the current editor.
      */
     private void keyDownUp(int keyEventCode) {
+        flushComposing();
+        mEditorCalls.count();
+        // what a key does to the text is up to the editor
+        mCapsMode.invalidate();
         getCurrentInputConnection().sendKeyEvent(
                 new KeyEvent(KeyEvent.ACTION_DOWN, keyEventCode));
         getCurrentInputConnection().sendKeyEvent(
@@ -539,7 +775,10 @@ public class SoftKeyboard extends InputMethodService
                 if (keyCode >= '0' && keyCode <= '9') {
                     keyDownUp(keyCode - '0' + KeyEvent.KEYCODE_0);
                 } else {
-                    getCurrentInputConnection().commitText(String.valueOf((char) keyCode), 1);
+                    flushComposing();
+                    getCurrentInputConnection().commitText(mCodePoint.set(keyCode), 1);
+                    mEditorCalls.count();
+                    mCapsMode.committed(mCodePoint);
                 }
                 break;
         }
@@ -549,6 +788,22 @@ public class SoftKeyboard extends InputMethodService
     public void onKey(int primaryCode, int[] keyCodes) {    	
     	PimaUtil.info("onkey: %d", primaryCode);
     	
+    	if (mEvalStream.isActive() && isEditorKey(primaryCode)) {
+    		// a key stops a streaming eval: cancel drops what it has
+    		// produced so far, anything else keeps it.
+    		boolean cancel = primaryCode == Keyboard.KEYCODE_CANCEL;
+    		mKeyContext.countMessages(mEvalStream.cancel());
+    		endEvalStream(!cancel);
+    		if (cancel) {
+    			return;
+    		}
+    	}
+    	if (mDispatcher.isBusy() && isEditorKey(primaryCode)) {
+    		// earlier keys are still waiting for the service, keep the
+    		// editor changes in keystroke order.
+    		mDispatcher.defer(primaryCode, currentMeta());
+    		return;
+    	}
     	if (mEval.on) {
     		if (primaryCode != '\n' 
     				&& primaryCode != Keyboard.KEYCODE_DELETE
@@ -560,25 +815,32 @@ public class SoftKeyboard extends InputMethodService
     					&& primaryCode != PIMA_KEYCODE_CTRL
     					&& primaryCode != PIMA_KEYCODE_ALT
     					&& primaryCode != PIMA_KEYCODE_F1) {
-    				if (isInputViewShown()) {
-    					if (mInputView.isShifted()) {
-    						primaryCode = Character.toUpperCase(primaryCode);
-    					}
+    				if (isShifted()) {
+    					primaryCode = Character.toUpperCase(primaryCode);
     				}
-    				mComposing.append((char) primaryCode);
-    				getCurrentInputConnection().setComposingText(mComposing, 1);
-    				updateShiftKeyState(getCurrentInputEditorInfo());
-    				updateCandidates();
+    				CodePointText.append(mComposing, primaryCode);
+    				composingChanged();
     			}
     			return;
     		}    		
     	}
         if (isWordSeparator(primaryCode)) {
             // Handle separator
+            if (mEval.on) {
+                // evaluates the composing text, whose result is recorded
+            } else if (primaryCode == '\n') {
+                recordKeymacro(Keymacro.KEY, KeyEvent.KEYCODE_ENTER);
+            } else {
+                recordKeymacro(Keymacro.TEXT, primaryCode);
+            }
             if (mComposing.length() > 0) {
                 commitTyped(getCurrentInputConnection());
             }
             sendKey(primaryCode);
+            if (primaryCode != ' ') {
+                // pairs are only learned within a phrase
+                mLastWord = null;
+            }
             updateShiftKeyState(getCurrentInputEditorInfo());
         } else if (primaryCode == PIMA_KEYCODE_ALT) {
             handlePimaAlt();
@@ -614,96 +876,395 @@ public class SoftKeyboard extends InputMethodService
         }
     }
     
-    PimaCallback mPimaCallback = new PimaCallback() {
+    /**
+     * Character keys go through {@link #handleCharacter}, which orders
+     * itself; these are the other keys that change the editor.
+     */
+    private boolean isEditorKey(int code) {
+    	if (code == PIMA_KEYCODE_EVAL
+    			|| code == PIMA_KEYCODE_CTRL
+    			|| code == PIMA_KEYCODE_ALT
+    			|| code == PIMA_KEYCODE_F1
+    			|| code == Keyboard.KEYCODE_SHIFT
+    			|| code == Keyboard.KEYCODE_MODE_CHANGE
+    			|| code == LatinKeyboardView.KEYCODE_OPTIONS) {
+    		return false;
+    	}
+    	return mEval.on || isWordSeparator(code)
+    			|| code == Keyboard.KEYCODE_DELETE
+    			|| code == Keyboard.KEYCODE_CANCEL;
+    }
+    
+    /**
+     * Gets the replies to evals.  Replies to keys come through the
+     * dispatcher, and never touch the eval stream.
+     */
+    PimaCallback mEvalCallback = new PimaCallback() {
     	@Override
     	public void call(Message msg) {
+    		onServiceReply(msg);
+    		performEvalReply(msg);
+    	}
+    };
+    
+    /**
+     * Picks up the state the service pushes along with its replies.
+     */
+    private void onServiceReply(Message msg) {
+    	Bundle data = msg.getData();
+    	mBindings.update(data);
+    	mDispatcher.update(data);
+    	mKeyContext.countMessages(mEvalBudget.setKeybindTimeout(mDispatcher.getTimeout()));
+    	mKeyContext.update(data);
+    	String separators = data.getString(SeparatorTable.KEY_WORD_SEPARATORS);
+    	if (separators != null && !separators.equals(mWordSeparators.getSource())) {
+    		mWordSeparators = new SeparatorTable(separators);
+    	}
+    }
+    
+    /**
+     * Runs the builtins which only move around in the editor.  Returns
+     * false for anything else.
+     */
+    private boolean performBuiltin(int what) {
+    	switch (what) {
+    	case Protocol.BUILTIN_RIGHT:						
+    		keyDownUp(KeyEvent.KEYCODE_DPAD_RIGHT);						
+    		mMirror.selectionMoved();
+    		break;
+    	case Protocol.BUILTIN_LEFT:					
+    		keyDownUp(KeyEvent.KEYCODE_DPAD_LEFT);						
+    		mMirror.selectionMoved();
+    		break;
+    	case Protocol.BUILTIN_PREVIOUSE_LINE:						
+    		keyDownUp(KeyEvent.KEYCODE_DPAD_UP);						
+    		mMirror.selectionMoved();
+    		break;
+    	case Protocol.BUILTIN_NEXT_LINE:						
+    		keyDownUp(KeyEvent.KEYCODE_DPAD_DOWN);						
+    		mMirror.selectionMoved();
+    		break;
+    	case Protocol.BUILTIN_SCROLL_DOWN:			
+    		keyDownUp(KeyEvent.KEYCODE_PAGE_UP);				
+    		mMirror.selectionMoved();
+    		break;
+    	case Protocol.BUILTIN_SCROLL_UP:
+    		keyDownUp(KeyEvent.KEYCODE_PAGE_DOWN);					
+    		mMirror.selectionMoved();
+    		break;						
+    	case Protocol.BUILTIN_END_OF_LINE:				
+    	case Protocol.BUILTIN_BEGINNING_OF_LINE:
+    	case Protocol.BUILTIN_FORWARD_SEXP:
+    	case Protocol.BUILTIN_BACKWARD_SEXP:
+    		performMotion(what);
+    		break;
+    	default:
+    		return false;
+    	}
+    	return true;
+    }
+    
+    private void performReply(Message msg) {
+    	int pos = getCurrentInputEditorInfo().initialSelStart;
+    	PimaUtil.info("pos: %d, id: %d", pos, msg.what);
 
-    		int pos = getCurrentInputEditorInfo().initialSelStart;
-    		PimaUtil.info("pos: %d, id: %d", pos, msg.what);
-
-    		switch (msg.what) {
-    		case Protocol.BUILTIN_RIGHT:						
-    			keyDownUp(KeyEvent.KEYCODE_DPAD_RIGHT);						
-    			break;
-    		case Protocol.BUILTIN_LEFT:					
-    			keyDownUp(KeyEvent.KEYCODE_DPAD_LEFT);						
-    			break;
-    		case Protocol.BUILTIN_PREVIOUSE_LINE:						
-    			keyDownUp(KeyEvent.KEYCODE_DPAD_UP);						
-    			break;
-    		case Protocol.BUILTIN_NEXT_LINE:						
-    			keyDownUp(KeyEvent.KEYCODE_DPAD_DOWN);						
-    			break;
-    		case Protocol.BUILTIN_SCROLL_DOWN:			
-    			keyDownUp(KeyEvent.KEYCODE_PAGE_UP);				
-    			break;
-    		case Protocol.BUILTIN_SCROLL_UP:
-    			keyDownUp(KeyEvent.KEYCODE_PAGE_DOWN);					
-    			break;						
-    		case Protocol.BUILTIN_SHOW_NOTICE:
-    			String res0 = msg.getData().getString(Protocol.KEY_NOTICE_MESSAGE);
-    			if (res0 != null) {
-    				showToast(res0);
-    			} else {
-    				showToast("error");
-    			}
-    			keyDownUp(KeyEvent.KEYCODE_DPAD_RIGHT);
-//    			keyDownUp(KeyEvent.KEYCODE_DPAD_LEFT);
-    			break;						
-    		case Protocol.BUILTIN_RELOAD_CONFIGURATIONS:
-    			String res1 = msg.getData().getString(Protocol.KEY_LOAD_FILE);
-    			if (res1 != null)
-    				showToast(res1); //Toast.makeText(SoftKeyboard.this, res1, Toast.LENGTH_SHORT).show();
-    			else
-    				showToast("error"); //Toast.makeText(SoftKeyboard.this, "error", Toast.LENGTH_SHORT).show();
-    			break;					
-    		case Protocol.BUILTIN_KEYMACRO_PLAY:
-    			mKeymacroPlaying = true;
-    			for (Integer key: mKeymacroKeyEvents) {
-    				onKey(key, null);
-    			}
-    			break;
-    		case Protocol.BUILTIN_KEYMACRO_REC_END:
-    			mKeymacroRecording = false;
-    			showToast("done");  //	Toast.makeText(SoftKeyboard.this, "done", Toast.LENGTH_SHORT).show();
-    			break;
-    		case Protocol.BUILTIN_KEYMACRO_REC_START:
-    			mKeymacroKeyEvents.clear();
-    			mKeymacroRecording = true;
-    			showToast("recording"); //Toast.makeText(SoftKeyboard.this, "recording", Toast.LENGTH_SHORT).show();
-    			break;
-    		case Protocol.BUILTIN_END_OF_LINE:				
-    		case Protocol.BUILTIN_BEGINNING_OF_LINE:
-    		case Protocol.BUILTIN_FORWARD_SEXP:
-    		case Protocol.BUILTIN_BACKWARD_SEXP:
-    			PimaUtil.warn("not implemented");
+    	if (performBuiltin(msg.what)) {
+    		recordKeymacro(Keymacro.BUILTIN, msg.what);
+    		return;
+    	}
+    	switch (msg.what) {
+    	case Protocol.BUILTIN_SHOW_NOTICE:
+    		String res0 = msg.getData().getString(Protocol.KEY_NOTICE_MESSAGE);
+    		if (res0 != null) {
+    			showToast(res0);
+    		} else {
+    			showToast("error");
+    		}
+    		keyDownUp(KeyEvent.KEYCODE_DPAD_RIGHT);
+//    		keyDownUp(KeyEvent.KEYCODE_DPAD_LEFT);
+    		break;						
+    	case Protocol.BUILTIN_RELOAD_CONFIGURATIONS:
+    		String res1 = msg.getData().getString(Protocol.KEY_LOAD_FILE);
+    		compileBindings();
+    		if (res1 != null)
+    			showToast(res1); //Toast.makeText(SoftKeyboard.this, res1, Toast.LENGTH_SHORT).show();
+    		else
+    			showToast("error"); //Toast.makeText(SoftKeyboard.this, "error", Toast.LENGTH_SHORT).show();
+    		break;					
+    	case Protocol.BUILTIN_KEYMACRO_PLAY:
+    		playKeymacro(mKeymacros.get(getKeymacroRegister(msg)));
+    		break;
+    	case Protocol.BUILTIN_KEYMACRO_REC_END:
+    		mKeymacroRecording = false;
+    		mKeymacros.save();
+    		showToast("done");  //	Toast.makeText(SoftKeyboard.this, "done", Toast.LENGTH_SHORT).show();
+    		break;
+    	case Protocol.BUILTIN_KEYMACRO_REC_START:
+    		mKeymacro = mKeymacros.get(getKeymacroRegister(msg));
+    		mKeymacro.clear();
+    		mKeymacroRecording = true;
+    		showToast("recording"); //Toast.makeText(SoftKeyboard.this, "recording", Toast.LENGTH_SHORT).show();
+    		break;
+    	default:
+    		if (mEvalBudget.handle(msg.getData(), false, msg.arg2, mBudgetFallback)) {
     			break;
-    		default:
-    			if (msg.getData().getBoolean(Protocol.KEY_RESULT_STATUS)) {
-    				PimaUtil.info("processed by pima service");
-    				getCurrentInputConnection().commitText(msg.getData().getString(Protocol.KEY_SCRIPT_RESULT), 1);
-    				mComposing.setLength(0);
-    			} else {
-    				PimaUtil.info("pima skipped");
-
-    				handleCharImpl(msg.arg2);
+    		}
+    		if (msg.getData().getBoolean(Protocol.KEY_RESULT_STATUS)) {
+    			PimaUtil.info("processed by pima service");
+    			String result = msg.getData().getString(Protocol.KEY_SCRIPT_RESULT);
+    			discardComposing();
+    			getCurrentInputConnection().commitText(result, 1);
+    			mComposing.setLength(0);
+    			if (result != null) {
+    				mCapsMode.committed(result);
+    				recordKeymacroString(result);
     			}
-    			break;
+    		} else {
+    			PimaUtil.info("pima skipped");
+
+    			handleCharImpl(msg.arg2);
     		}
+    		break;
     	}
-    };
+    }
+
+    /**
+     * Handles a reply to {@link #handleEval}.  Replies to an eval that has
+     * since been cancelled or superseded are dropped; the others go on
+     * the stream or, for an eval answered in one go, end it.
+     */
+    private void performEvalReply(Message msg) {
+    	Bundle data = msg.getData();
+    	if (mEvalStream.isLate(data)) {
+    		PimaUtil.info("dropping reply to a cancelled eval");
+    		return;
+    	}
+    	if (mEvalBudget.handle(data, true, msg.arg2, mBudgetFallback)) {
+    		return;
+    	}
+    	if (EvalStream.isStreamed(data)) {
+    		handleEvalChunk(data);
+    		return;
+    	}
+    	// an eval answered in one go
+    	mEvalStream.end();
+    	performReply(msg);
+    }
 
+    private String getKeymacroRegister(Message msg) {
+    	String name = msg.getData().getString(KeymacroStore.KEY_KEYMACRO_REGISTER);
+    	return name != null ? name : "";
+    }
+    
+    private void recordKeymacro(int type, int arg) {
+    	if (mKeymacroRecording && !mKeymacroPlaying) {
+    		mKeymacro.add(type, arg);
+    	}
+    }
+    
+    private void recordKeymacroString(String s) {
+    	if (mKeymacroRecording && !mKeymacroPlaying) {
+    		mKeymacro.addString(s);
+    	}
+    }
+    
+    /**
+     * Replays the recorded macro as a single batch edit.  Runs of text are
+     * committed together, and nothing goes to the script service since the
+     * bindings were resolved while recording.
+     */
+    private void playKeymacro(Keymacro keymacro) {
+    	final InputConnection ic = getCurrentInputConnection();
+    	if (ic == null) {
+    		return;
+    	}
+    	long start = System.nanoTime();
+    	mKeymacroPlaying = true;
+    	ic.beginBatchEdit();
+    	try {
+    		commitTyped(ic);
+    		// the editor reports changes after the batch edit, so motions
+    		// later in the macro have to look at the text again.
+    		keymacro.play(new Keymacro.Player() {
+    			public void commitText(CharSequence text) {
+    				ic.commitText(text, 1);
+    				mCapsMode.committed(text);
+    				mMirror.invalidate();
+    			}
+    			public void delete() {
+    				keyDownUp(KeyEvent.KEYCODE_DEL);
+    				mMirror.invalidate();
+    			}
+    			public void sendKey(int keyCode) {
+    				keyDownUp(keyCode);
+    				mMirror.invalidate();
+    			}
+    			public void builtin(int opcode) {
+    				// the cursor keys mark the mirror's selection as moved
+    				performBuiltin(opcode);
+    			}
+    		});
+    	} finally {
+    		ic.endBatchEdit();
+    		mKeymacroPlaying = false;
+    	}
+    	updateShiftKeyState(getCurrentInputEditorInfo());
+    	PimaUtil.info("keymacro: %d actions in %d us", keymacro.size(),
+    			(System.nanoTime() - start) / 1000);
+    }
+    
+    /**
+     * Makes sure the text mirror holds the text around the cursor.  It is
+     * only extracted once; after that the editor reports changes to it.
+     */
+    private boolean ensureTextMirror(InputConnection ic) {
+    	if (mMirror.isValid() && mMirror.isSelectionKnown() && mMirror.containsSelection()) {
+    		return true;
+    	}
+    	// either nothing is mirrored, or the cursor has moved somewhere the
+    	// mirror does not know of or out of the window, whose text the
+    	// motion would then run off.
+    	mMirror.invalidate();
+    	// monitoring would take the editor's updates away from the
+    	// fullscreen extract view, so then the text is extracted per motion.
+    	boolean monitor = !isExtractViewShown();
+    	ExtractedText et = ic.getExtractedText(mTextRequest,
+    			monitor ? InputConnection.GET_EXTRACTED_TEXT_MONITOR : 0);
+    	if (et == null) {
+    		return false;
+    	}
+    	mMirror.reset(et, mTextRequest.hintMaxChars, monitor);
+    	return mMirror.containsSelection();
+    }
+    
+    private void performMotion(int what) {
+    	flushComposing();
+    	InputConnection ic = getCurrentInputConnection();
+    	if (ic == null || !ensureTextMirror(ic)) {
+    		PimaUtil.warn("no text to move over");
+    		return;
+    	}
+    	mMirror.countOperation();
+    	int pos;
+    	do {
+    		pos = computeMotion(what);
+    	} while (mMirror.isClipped(pos) && mMirror.grow(ic, pos));
+    	ic.setSelection(pos, pos);
+    	// a motion right after this one, e.g. in a keymacro, starts here
+    	// even before the editor reports it
+    	mMirror.updateSelection(pos, pos);
+    	mCapsMode.invalidate();
+    	if (!mMirror.isMonitored()) {
+    		mMirror.invalidate();
+    	}
+    }
+    
+    private int computeMotion(int what) {
+    	switch (what) {
+    	case Protocol.BUILTIN_END_OF_LINE:
+    		return mMirror.endOfLine(mMirror.getSelectionEnd());
+    	case Protocol.BUILTIN_BEGINNING_OF_LINE:
+    		return mMirror.beginningOfLine(mMirror.getSelectionStart());
+    	case Protocol.BUILTIN_FORWARD_SEXP:
+    		return mMirror.forwardSexp(mMirror.getSelectionEnd());
+    	case Protocol.BUILTIN_BACKWARD_SEXP:
+    		return mMirror.backwardSexp(mMirror.getSelectionStart());
+    	default:
+    		return mMirror.getSelectionEnd();
+    	}
+    }
+    
     private void handleEval(String text) {
     	PimaUtil.info("eval: %s", text);
     	
-        mProxy.putCurrentData(Protocol.KEY_CURRENT_APPLICATION, getCurrentInputEditorInfo().packageName);
+        mKeyContext.flush(getCurrentInputConnection());
         try {
-			mProxy.eval(text, null, mPimaCallback);
+			mKeyContext.countMessages(mEvalBudget.send());
+			mKeyContext.countMessages(mEvalStream.begin());
+			mHandler.removeCallbacks(mEvalWatchdog);
+			mHandler.postDelayed(mEvalWatchdog, mEvalBudget.getEvalWatchdogMs());
+			mKeyContext.countMessage();
+			mProxy.eval(text, null, mEvalCallback);
 		} catch (RemoteException e) {
 			e.printStackTrace();
 		}	
 	}
 
+	/**
+	 * Adds a chunk of a streamed eval result to the composing text, which
+	 * replaces the evaluated expression.  Chunks arriving together reach the
+	 * editor as one update.
+	 */
+	private void handleEvalChunk(Bundle data) {
+		String chunk = data.getString(EvalStream.KEY_SCRIPT_RESULT_CHUNK);
+		if (chunk != null) {
+			mEvalStream.chunk(chunk);
+			int room = mEvalBudget.getOutputChars() - mComposing.length();
+			if (chunk.length() > room) {
+				PimaUtil.warn("eval output over %d chars", mEvalBudget.getOutputChars());
+				mComposing.append(chunk, 0, Math.max(0, room));
+				composingChanged();
+				mKeyContext.countMessages(mEvalStream.cancel());
+				endEvalStream(true);
+				showToast("eval output truncated");
+				return;
+			}
+			mComposing.append(chunk);
+			composingChanged();
+		}
+		if (data.getBoolean(EvalStream.KEY_SCRIPT_RESULT_DONE)) {
+			mEvalStream.end();
+			endEvalStream(true);
+		}
+	}
+
+	/**
+	 * The script host stopped a script for going over a budget.  A key
+	 * binding falls back to the plain key right away; an eval keeps
+	 * whatever it produced.  Which one it was is told by the callback the
+	 * reply came through, since a key can be bound while an eval streams.
+	 */
+	private final EvalBudget.Fallback mBudgetFallback = new EvalBudget.Fallback() {
+		public void key(int code, String budget) {
+			PimaUtil.warn("key binding stopped, over its %s budget", budget);
+			handleCharImpl(code);
+		}
+		public void eval(String budget) {
+			PimaUtil.warn("eval stopped, over its %s budget", budget);
+			mEvalStream.end();
+			endEvalStream(true);
+			showToast("eval stopped: " + budget + " budget");
+		}
+	};
+
+	/**
+	 * Leaves the streamed result in the editor, or removes it.
+	 */
+	private void endEvalStream(boolean keep) {
+		InputConnection ic = getCurrentInputConnection();
+		if (keep) {
+			flushComposing();
+			String result = mComposing.toString();
+			if (ic != null) {
+				ic.finishComposingText();
+				mEditorCalls.count();
+			}
+			mCapsMode.committed(result);
+			if (result.length() > 0) {
+				recordKeymacroString(result);
+			}
+		} else {
+			discardComposing();
+			if (ic != null) {
+				ic.commitText("", 1);
+				mEditorCalls.count();
+			}
+			mCapsMode.committed("");
+		}
+		mComposing.setLength(0);
+		updateCandidates();
+	}
+
 	private void handlePimaEval() {
 		// TODO Auto-generated method stub
 		
@@ -737,27 +1298,151 @@ public class SoftKeyboard extends InputMethodService
 			}
 			ic.commitText(text, 0);
 			ic.endBatchEdit();
+			// the cursor stays in front of the text
+			mCapsMode.invalidate();
 			updateShiftKeyState(getCurrentInputEditorInfo());
 		}
     }
 
     /**
      * Update the list of available candidates from the current composing
-     * text.  This will need to be filled in by however you are determining
-     * candidates.
+     * text.  Completions are ranked on the candidate worker; until they come
+     * back the previous candidates stay up.
      */
     private void updateCandidates() {
         if (!mCompletionOn) {
-            if (mComposing.length() > 0) {
+            if (mComposing.length() > 0 && !mEval.on) {
+                mCandidateWorker.request(mComposing.toString(), mLastWord);
+            } else if (mComposing.length() > 0) {
+                mCandidateWorker.cancel();
                 ArrayList<String> list = new ArrayList<String>();
                 list.add(mComposing.toString());
+                mCandidates = list;
                 setSuggestions(list, true, true);
             } else {
+                mCandidateWorker.cancel();
+                mCandidates = null;
                 setSuggestions(null, false, false);
             }
         }
     }
     
+    /**
+     * Maps the precompiled dictionary.  Assets can not be mapped directly,
+     * so the first start after an install or update copies it into the
+     * files directory, named after the package file's modification time
+     * so that a reinstall of the same version still replaces it; after
+     * that opening it does not depend on its size.
+     * Candidates only echo the typed text until it is ready.  The asset is
+     * not checked in (see the README); without it candidates come from
+     * the user's history alone.
+     */
+    private void loadDictionary() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    long apkTime = new File(getApplicationInfo().sourceDir).lastModified();
+                    File file = new File(getFilesDir(), "words-" + apkTime + ".dict");
+                    if (!file.exists()) {
+                        deleteDictionaries();
+                        copyAsset(DICTIONARY_ASSET, file);
+                    }
+                    mCandidateWorker.setDictionary(MappedDictionary.open(file));
+                    PimaUtil.info("dictionary opened in %d ms", System.currentTimeMillis() - start);
+                } catch (FileNotFoundException e) {
+                    PimaUtil.warn("no dictionary: asset %s is not in the package, "
+                            + "only learned words will be suggested", DICTIONARY_ASSET);
+                } catch (IOException e) {
+                    PimaUtil.warn("no dictionary: %s", e.toString());
+                }
+            }
+        }, "dictionary-load").start();
+    }
+    
+    /**
+     * Compiles the builtin-only key bindings of the configuration in the
+     * background and installs them, so that those keys can be told apart
+     * from the ones the interpreter has to run.  Compiles run one at a
+     * time, and only the latest one's result is installed, so a reload
+     * can not be overtaken by an earlier one.
+     */
+    private void compileBindings() {
+        final int generation = mCompileGeneration.incrementAndGet();
+        mCompileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mCompileGeneration.get()) {
+                    return;
+                }
+                final KeyBindingTable compiled;
+                final String hash;
+                try {
+                    String config = new Configuration(SoftKeyboard.this, false)
+                            .getConfigurationContents();
+                    compiled = mBindingCompiler.compile(config != null ? config : "");
+                    hash = mBindingCompiler.getHash();
+                } catch (IOException e) {
+                    PimaUtil.warn("no configuration to compile: %s", e.toString());
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (generation != mCompileGeneration.get()) {
+                            return;
+                        }
+                        mBindings.setCompiled(compiled, hash);
+                        PimaUtil.info("compiled key bindings %s",
+                                compiled != null ? "installed" : "removed");
+                        // lets the service reuse what it compiled for the same text
+                        mProxy.putCurrentData(BindingCompiler.KEY_CONFIG_HASH, hash);
+                        mKeyContext.countMessage();
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Removes the copies of earlier packages' dictionaries.
+     */
+    private void deleteDictionaries() {
+        File[] files = getFilesDir().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith("words-") && (name.endsWith(".dict") || name.endsWith(".dict.tmp"))
+                    && !f.delete()) {
+                PimaUtil.warn("failed to delete old dictionary %s", name);
+            }
+        }
+    }
+    
+    private void copyAsset(String name, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        InputStream in = getAssets().open(name);
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("failed to install " + file);
+        }
+    }
+    
     public void setSuggestions(List<String> suggestions, boolean completions,
             boolean typedWordValid) {
         if (suggestions != null && suggestions.size() > 0) {
@@ -772,13 +1457,21 @@ public class SoftKeyboard extends InputMethodService
     
     private void handleBackspace() {
         final int length = mComposing.length();
-        if (length > 1) {
-            mComposing.delete(length - 1, length);
-            getCurrentInputConnection().setComposingText(mComposing, 1);
-            updateCandidates();
+        if (Keymacro.recordsBackspace(mEval.on, length)) {
+            recordKeymacro(Keymacro.DELETE, 0);
+        }
+        // a character outside the BMP is two chars, delete both
+        final int last = length > 0 ? Character.charCount(mComposing.codePointBefore(length)) : 0;
+        if (length > last) {
+            mComposing.delete(length - last, length);
+            composingChanged();
+            return;
         } else if (length > 0) {
             mComposing.setLength(0);
+            discardComposing();
             getCurrentInputConnection().commitText("", 0);
+            mEditorCalls.count();
+            mCapsMode.committed("");
             updateCandidates();
         } else {
             keyDownUp(KeyEvent.KEYCODE_DEL);
@@ -807,57 +1500,72 @@ public class SoftKeyboard extends InputMethodService
         }
     }
     
-    private String toKeyExpr(int code) {
-    	if (mAlt.on && mCtrl.on) {
-    		return String.format("C-M-%c", (char)code);	
-    	} else if (mAlt.on) {
-    		return String.format("M-%c", (char)code);
-    	} else if (mCtrl.on) {
-    		return String.format("C-%c", (char)code);
-    	} else if (mF1.on) {
-    		return String.format("F1-%c", (char)code);
-    	} else if (mEval.on) {
-    		return String.format("%c", (char)code);
-    	} else {    		
-    		return String.format("%c", (char)code);
-    	}    	
+    private int toKeyChord(int code) {
+    	return KeyChord.of(code, mCtrl.on, mAlt.on, mF1.on, mEval.on);
+    }
+    
+    private int currentMeta() {
+    	int meta = 0;
+    	if (mCtrl.on) meta |= META_CTRL;
+    	if (mAlt.on) meta |= META_ALT;
+    	if (mF1.on) meta |= META_F1;
+    	if (mEval.on) meta |= META_EVAL;
+    	if (isInputViewShown() && mInputView.isShifted()) meta |= META_SHIFT;
+    	return meta;
+    }
+    
+    /**
+     * Sets the modifier keys; shift is left to {@link #isShifted}.
+     */
+    private void setModifiers(int meta) {
+    	mCtrl.on = (meta & META_CTRL) != 0;
+    	mAlt.on = (meta & META_ALT) != 0;
+    	mF1.on = (meta & META_F1) != 0;
+    	mEval.on = (meta & META_EVAL) != 0;
+    }
+    
+    /**
+     * Whether the key being handled is shifted: as the keyboard shows it,
+     * or as it was when a replayed key was pressed.
+     */
+    private boolean isShifted() {
+    	if (mReplayMeta != NO_META) {
+    		return (mReplayMeta & META_SHIFT) != 0;
+    	}
+    	return isInputViewShown() && mInputView.isShifted();
     }
     
     private void handleCharacter(int primaryCode, int[] keyCodes) {
-        if (isInputViewShown()) {
-            if (mInputView.isShifted()) {
-                primaryCode = Character.toUpperCase(primaryCode);
-            }
+        if (isShifted()) {
+            primaryCode = Character.toUpperCase(primaryCode);
         }
-        String key = toKeyExpr(primaryCode);
-        CharSequence currentSelection = getCurrentInputConnection().getSelectedText(0);
-        if (currentSelection != null) {
-        	PimaUtil.info("selection: %s", currentSelection.toString());
-        	mProxy.putCurrentData(Protocol.KEY_TEXT_SELECTION, currentSelection.toString());
-        } else {
-        	PimaUtil.info("no selection");
+        mKeyContext.countKey();
+        int chord = toKeyChord(primaryCode);
+        int binding = mBindings.lookup(chord);
+        if (binding == KeyBindingTable.NOT_BOUND) {
+        	// nothing in the configuration handles this key, so there is
+        	// no need to ask the service.
+        	mDispatcher.dispatchLocal(primaryCode);
+        	return;
+        } else if (binding != KeyBindingTable.REMOTE) {
+        	// bound to a builtin, which runs here without the service
+        	mDispatcher.dispatchBuiltin(binding);
+        	return;
         }
-        PimaUtil.info("package name: %s", getCurrentInputEditorInfo().packageName);
-        
-        mProxy.putCurrentData(Protocol.KEY_CURRENT_APPLICATION, getCurrentInputEditorInfo().packageName);
-        try {
-			mProxy.callKeyBind(key, primaryCode, mPimaCallback); 			
-		} catch (RemoteException e) {
-			handleCharImpl(primaryCode);
-			e.printStackTrace();
-			
-		}
+        String key = KeyChord.toExpr(chord);
+        mDispatcher.dispatchRemote(key, primaryCode);
     }
 
     private void handleCharImpl(int code) {
+    	recordKeymacro(Keymacro.TEXT, code);
     	if (isAlphabet(code) && mPredictionOn) {
-    		mComposing.append((char) code);
-    		getCurrentInputConnection().setComposingText(mComposing, 1);
-    		updateShiftKeyState(getCurrentInputEditorInfo());
-    		updateCandidates();
+    		CodePointText.append(mComposing, code);
+    		composingChanged();
     	} else {
-    		getCurrentInputConnection().commitText(
-    				String.valueOf((char) code), 1);
+    		flushComposing();
+    		getCurrentInputConnection().commitText(mCodePoint.set(code), 1);
+    		mEditorCalls.count();
+    		mCapsMode.committed(mCodePoint);
     	}
     	
     }
@@ -878,17 +1586,16 @@ public class SoftKeyboard extends InputMethodService
         }
     }
     
-    private String getWordSeparators() {
+    private SeparatorTable getWordSeparators() {
     	if (mEval.on) {
-    		return "\n";
+    		return mEvalSeparators;
     	} else {
     		return mWordSeparators;
     	}
     }
     
     public boolean isWordSeparator(int code) {
-        String separators = getWordSeparators();
-        return separators.contains(String.valueOf((char)code));
+        return getWordSeparators().contains(code);
     }
 
     public void pickDefaultCandidate() {
@@ -900,14 +1607,21 @@ public class SoftKeyboard extends InputMethodService
                 && index < mCompletions.length) {
             CompletionInfo ci = mCompletions[index];
             getCurrentInputConnection().commitCompletion(ci);
+            mCapsMode.invalidate();
             if (mCandidateView != null) {
                 mCandidateView.clear();
             }
             updateShiftKeyState(getCurrentInputEditorInfo());
         } else if (mComposing.length() > 0) {
-            // If we were generating candidate suggestions for the current
-            // text, we would commit one of them here.  But for this sample,
-            // we will just commit the current text.
+            // Replace the typed text with the picked candidate; the first
+            // one is the typed text itself.  Candidates still showing for
+            // an earlier prefix would drop what was typed since, so a pick
+            // from them only commits the typed text.
+            if (mCandidates != null && index > 0 && index < mCandidates.size()
+                    && mCandidateWorker.isCurrent()) {
+                mComposing.setLength(0);
+                mComposing.append(mCandidates.get(index));
+            }
             commitTyped(getCurrentInputConnection());
         }
     }
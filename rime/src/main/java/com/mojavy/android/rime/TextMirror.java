@@ -0,0 +1,357 @@
+package com.mojavy.android.pima;
+
+import com.mojavy.android.pima.util.PimaUtil;
+
+import android.view.inputmethod.ExtractedText;
+import android.view.inputmethod.InputConnection;
+
+/**
+ * A copy of the editor text kept on the keyboard side, so that motions like
+ * forward_sexp can be computed without asking the editor for its text on
+ * every key.  It is seeded once from an extracted text request and then kept
+ * current from the partial updates the editor reports while it is being
+ * monitored, and from {@link #updateSelection}.
+ *
+ * Only a window of the text around the cursor is copied.  A motion that runs
+ * into the edge of the window grows that side with {@link #grow} and tries
+ * again, up to a limit that keeps a single read well within a Binder
+ * transaction, so editing a large document costs about the same as editing
+ * a small one.
+ *
+ * All positions are document offsets.
+ */
+class TextMirror {
+
+	private final GapBuffer mText = new GapBuffer();
+	private int mBase;
+	private boolean mValid;
+	private int mSelStart;
+	private int mSelEnd;
+	private boolean mMonitored;
+	private boolean mSelectionMoved;
+	private boolean mAtStart;
+	private boolean mAtEnd;
+	private int mHint;
+	private final int mInitialWindow;
+	private final int mMaxWindow;
+
+	int mOperations;
+	long mCharsExtracted;
+
+	/**
+	 * window is the size to extract at first, maxWindow the most that is
+	 * read on either side of the cursor.
+	 */
+	TextMirror(int window, int maxWindow) {
+		mInitialWindow = window;
+		mMaxWindow = maxWindow;
+	}
+
+	boolean isValid() {
+		return mValid;
+	}
+
+	void invalidate() {
+		mValid = false;
+		mMonitored = false;
+		mText.clear();
+	}
+
+	/**
+	 * True if the editor reports changes to the mirrored text.  A mirror
+	 * that is not monitored is only good for the operation it was
+	 * extracted for.
+	 */
+	boolean isMonitored() {
+		return mMonitored;
+	}
+
+	/**
+	 * Starts over from an extracted text requested with a hint of
+	 * hintMaxChars.
+	 */
+	void reset(ExtractedText et, int hintMaxChars, boolean monitored) {
+		reset(et.text != null ? et.text : "", et.startOffset,
+				et.selectionStart, et.selectionEnd, hintMaxChars);
+		mMonitored = monitored;
+	}
+
+	/**
+	 * Starts over from text found at startOffset in the document, with the
+	 * selection relative to it as in an ExtractedText.
+	 */
+	void reset(CharSequence text, int startOffset, int selectionStart, int selectionEnd,
+			int hintMaxChars) {
+		mText.set(text);
+		mBase = startOffset;
+		mSelStart = startOffset + selectionStart;
+		mSelEnd = startOffset + selectionEnd;
+		mSelectionMoved = false;
+		mAtStart = startOffset == 0;
+		mAtEnd = text.length() < hintMaxChars;
+		mHint = hintMaxChars;
+		mCharsExtracted += text.length();
+		mValid = true;
+	}
+
+	/**
+	 * Doubles the side of the window a motion ending at pos ran into.
+	 * Returns false if there is nothing more to see there.
+	 *
+	 * The editor can only be read relative to the cursor, so the part of
+	 * that side already mirrored is read again along with the new text.
+	 */
+	boolean grow(InputConnection ic, int pos) {
+		boolean backward = pos <= start() && !mAtStart;
+		int known = backward ? selectionMin() - start() : end() - selectionMax();
+		if (known >= mMaxWindow) {
+			return false;
+		}
+		int n = Math.min(Math.max(known * 2, mInitialWindow), mMaxWindow);
+		CharSequence text = backward ? ic.getTextBeforeCursor(n, 0) : ic.getTextAfterCursor(n, 0);
+		if (text == null) {
+			return false;
+		}
+		if (backward) {
+			growBefore(text, n);
+		} else {
+			growAfter(text, n);
+		}
+		PimaUtil.info("text mirror window: %d chars", mText.length());
+		return true;
+	}
+
+	/**
+	 * Replaces what is mirrored before the selection with before, read
+	 * from the editor with a limit of n chars.
+	 */
+	void growBefore(CharSequence before, int n) {
+		mText.replace(0, selectionMin() - mBase, before);
+		mBase = selectionMin() - before.length();
+		mAtStart = before.length() < n;
+		mCharsExtracted += before.length();
+	}
+
+	/**
+	 * Replaces what is mirrored after the selection with after, read from
+	 * the editor with a limit of n chars.
+	 */
+	void growAfter(CharSequence after, int n) {
+		mText.replace(selectionMax() - mBase, mText.length(), after);
+		mAtEnd = after.length() < n;
+		mCharsExtracted += after.length();
+	}
+
+	/**
+	 * True if a motion ended at pos only because the window ends there.
+	 */
+	boolean isClipped(int pos) {
+		return (pos <= start() && !mAtStart) || (pos >= end() && !mAtEnd);
+	}
+
+	/**
+	 * True if the selection is inside the window, which is what motions
+	 * start from.  The cursor can leave the window without any change to
+	 * the text, e.g. when the user taps elsewhere.
+	 */
+	boolean containsSelection() {
+		return selectionMin() >= start() && selectionMax() <= end();
+	}
+
+	/**
+	 * Notes that the editor has been told to move the cursor, e.g. by a
+	 * key event, to a place only it knows.  Until it reports the new
+	 * selection, the mirror's is out of date.
+	 */
+	void selectionMoved() {
+		mSelectionMoved = true;
+	}
+
+	/**
+	 * True if the selection is as the editor last reported it.
+	 */
+	boolean isSelectionKnown() {
+		return !mSelectionMoved;
+	}
+
+	/**
+	 * Counts a motion, for the bytes per operation statistics.
+	 */
+	void countOperation() {
+		mOperations++;
+	}
+
+	/**
+	 * Applies a change reported through onUpdateExtractedText.
+	 */
+	void update(ExtractedText et) {
+		CharSequence text = et.text != null ? et.text : "";
+		if (et.partialStartOffset < 0) {
+			reset(text, et.startOffset, et.selectionStart, et.selectionEnd,
+					mHint > 0 ? mHint : mInitialWindow);
+			return;
+		}
+		if (!update(et.startOffset, et.partialStartOffset, et.partialEndOffset, text,
+				et.selectionStart, et.selectionEnd)) {
+			PimaUtil.warn("text mirror out of sync at %d-%d",
+					et.startOffset + et.partialStartOffset, et.startOffset + et.partialEndOffset);
+		}
+	}
+
+	/**
+	 * Replaces [partialStart, partialEnd) with text, all relative to
+	 * startOffset as in an ExtractedText.  Returns false, and invalidates the
+	 * mirror, if the change can not be applied to it.
+	 */
+	boolean update(int startOffset, int partialStart, int partialEnd, CharSequence text,
+			int selectionStart, int selectionEnd) {
+		if (!mValid) {
+			return true;
+		}
+		int start = startOffset + partialStart - mBase;
+		int end = startOffset + partialEnd - mBase;
+		if (end <= 0 && start <= end && !(end == 0 && mAtStart)) {
+			// before the window, which only shifts
+			mBase += text.length() - (end - start);
+		} else if (start >= mText.length() && !(start == mText.length() && mAtEnd)) {
+			// after the window
+		} else if (start < 0 || end > mText.length() || start > end) {
+			invalidate();
+			return false;
+		} else {
+			mText.replace(start, end, text);
+		}
+		mSelStart = startOffset + selectionStart;
+		mSelEnd = startOffset + selectionEnd;
+		mSelectionMoved = false;
+		return true;
+	}
+
+	void updateSelection(int selStart, int selEnd) {
+		mSelStart = selStart;
+		mSelEnd = selEnd;
+		mSelectionMoved = false;
+	}
+
+	int getSelectionStart() {
+		return mSelStart;
+	}
+
+	int getSelectionEnd() {
+		return mSelEnd;
+	}
+
+	private int selectionMin() {
+		return Math.min(mSelStart, mSelEnd);
+	}
+
+	private int selectionMax() {
+		return Math.max(mSelStart, mSelEnd);
+	}
+
+	private int start() {
+		return mBase;
+	}
+
+	private int end() {
+		return mBase + mText.length();
+	}
+
+	private char at(int pos) {
+		return mText.charAt(pos - mBase);
+	}
+
+	int beginningOfLine(int pos) {
+		while (pos > start() && at(pos - 1) != '\n') {
+			pos--;
+		}
+		return pos;
+	}
+
+	int endOfLine(int pos) {
+		while (pos < end() && at(pos) != '\n') {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Moves over the next word or balanced bracket group, like emacs.
+	 */
+	int forwardSexp(int pos) {
+		int end = end();
+		while (pos < end && !isWordChar(at(pos)) && !isOpen(at(pos))) {
+			if (isClose(at(pos))) {
+				return pos + 1;
+			}
+			pos++;
+		}
+		if (pos >= end) {
+			return end;
+		}
+		if (isOpen(at(pos))) {
+			int depth = 0;
+			while (pos < end) {
+				char c = at(pos++);
+				if (isOpen(c)) {
+					depth++;
+				} else if (isClose(c) && --depth == 0) {
+					break;
+				}
+			}
+			return pos;
+		}
+		while (pos < end && isWordChar(at(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+
+	int backwardSexp(int pos) {
+		int start = start();
+		while (pos > start && !isWordChar(at(pos - 1)) && !isClose(at(pos - 1))) {
+			if (isOpen(at(pos - 1))) {
+				return pos - 1;
+			}
+			pos--;
+		}
+		if (pos <= start) {
+			return start;
+		}
+		if (isClose(at(pos - 1))) {
+			int depth = 0;
+			while (pos > start) {
+				char c = at(--pos);
+				if (isClose(c)) {
+					depth++;
+				} else if (isOpen(c) && --depth == 0) {
+					break;
+				}
+			}
+			return pos;
+		}
+		while (pos > start && isWordChar(at(pos - 1))) {
+			pos--;
+		}
+		return pos;
+	}
+
+	private static boolean isWordChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+
+	private static boolean isOpen(char c) {
+		return c == '(' || c == '[' || c == '{';
+	}
+
+	private static boolean isClose(char c) {
+		return c == ')' || c == ']' || c == '}';
+	}
+
+	@Override
+	public String toString() {
+		return String.format("window=%d operations=%d extracted=%d bytes (%d/op)",
+				mText.length(), mOperations, mCharsExtracted * 2,
+				mOperations > 0 ? mCharsExtracted * 2 / mOperations : 0);
+	}
+}
@@ -0,0 +1,33 @@
+package com.mojavy.android.pima.dict;
+
+/**
+ * A read-only trie of words with frequencies, addressed by node index.
+ * Children of a node are ordered by the best frequency found below them,
+ * which is what lets {@link DictionaryCursor} find the top completions
+ * without visiting the whole subtree.
+ *
+ * There is nothing android specific in this package, so it can be used
+ * and measured on a desktop JVM.
+ */
+public interface Dictionary {
+
+	int NONE = -1;
+
+	int root();
+
+	int parent(int node);
+
+	/** the first child of a node, or {@link #NONE} */
+	int firstChild(int node);
+
+	/** the next sibling of a node, or {@link #NONE} */
+	int nextSibling(int node);
+
+	char label(int node);
+
+	/** the frequency of the word ending at a node, 0 if none does */
+	int frequency(int node);
+
+	/** the best frequency of any word at or below a node */
+	int maxFrequency(int node);
+}
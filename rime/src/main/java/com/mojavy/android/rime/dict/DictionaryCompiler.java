@@ -0,0 +1,72 @@
+package com.mojavy.android.pima.dict;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+
+/**
+ * Turns a word list ("word[TAB]frequency" per line) into the binary format
+ * read by {@link MappedDictionary}.  Meant to be run on the desktop at
+ * build time:
+ *
+ * <pre>
+ * java -cp target/classes com.mojavy.android.pima.dict.DictionaryCompiler words.txt assets/words.dict
+ * </pre>
+ */
+public class DictionaryCompiler {
+
+	public static void compile(Dictionary d, int size, OutputStream os) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+		out.writeInt(MappedDictionary.MAGIC);
+		out.writeInt(MappedDictionary.VERSION);
+		out.writeInt(size);
+		for (int i = 0; i < size; i++) {
+			out.writeChar(d.label(i));
+		}
+		for (int i = size * 2; i < MappedDictionary.labelsSize(size); i++) {
+			out.writeByte(0);
+		}
+		for (int i = 0; i < size; i++) {
+			out.writeInt(d.parent(i));
+		}
+		for (int i = 0; i < size; i++) {
+			out.writeInt(d.firstChild(i));
+		}
+		for (int i = 0; i < size; i++) {
+			out.writeInt(d.nextSibling(i));
+		}
+		for (int i = 0; i < size; i++) {
+			out.writeInt(d.frequency(i));
+		}
+		for (int i = 0; i < size; i++) {
+			out.writeInt(d.maxFrequency(i));
+		}
+		out.flush();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("usage: DictionaryCompiler <word list> <output>");
+			System.exit(1);
+		}
+		Reader in = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
+		TrieDictionary d;
+		try {
+			d = TrieDictionary.load(in);
+		} finally {
+			in.close();
+		}
+		OutputStream out = new FileOutputStream(args[1]);
+		try {
+			compile(d, d.size(), out);
+		} finally {
+			out.close();
+		}
+		System.out.println(args[1] + ": " + d.size() + " nodes");
+	}
+}
@@ -0,0 +1,193 @@
+package com.mojavy.android.pima.dict;
+
+import java.util.List;
+
+/**
+ * Follows a prefix down a {@link Dictionary} one character at a time, so
+ * that typing or deleting a character costs a single step instead of a
+ * lookup from the root.  Lookups ignore case.
+ */
+public class DictionaryCursor {
+
+	private final Dictionary mDictionary;
+	private int[] mNodes = new int[32];
+	private char[] mChars = new char[32];
+	private int mDepth;
+	private long[] mHeap = new long[64];
+
+	public DictionaryCursor(Dictionary dictionary) {
+		mDictionary = dictionary;
+		mNodes[0] = dictionary.root();
+	}
+
+	public int length() {
+		return mDepth;
+	}
+
+	/**
+	 * The node the prefix ends at, or {@link Dictionary#NONE} if no word
+	 * starts with it.
+	 */
+	public int node() {
+		return mNodes[mDepth];
+	}
+
+	public void reset() {
+		mDepth = 0;
+	}
+
+	public void append(char c) {
+		c = Character.toLowerCase(c);
+		if (mDepth + 1 == mNodes.length) {
+			int[] nodes = new int[mNodes.length * 2];
+			System.arraycopy(mNodes, 0, nodes, 0, mNodes.length);
+			mNodes = nodes;
+			char[] chars = new char[mChars.length * 2];
+			System.arraycopy(mChars, 0, chars, 0, mChars.length);
+			mChars = chars;
+		}
+		int node = mNodes[mDepth];
+		int child = Dictionary.NONE;
+		if (node != Dictionary.NONE) {
+			for (child = mDictionary.firstChild(node); child != Dictionary.NONE;
+					child = mDictionary.nextSibling(child)) {
+				if (mDictionary.label(child) == c) {
+					break;
+				}
+			}
+		}
+		mChars[mDepth] = c;
+		mNodes[++mDepth] = child;
+	}
+
+	public void delete() {
+		if (mDepth > 0) {
+			mDepth--;
+		}
+	}
+
+	/**
+	 * Moves the cursor to a new prefix, keeping the part it shares with the
+	 * current one.
+	 */
+	public void sync(CharSequence prefix) {
+		int n = Math.min(mDepth, prefix.length());
+		int common = 0;
+		while (common < n && mChars[common] == Character.toLowerCase(prefix.charAt(common))) {
+			common++;
+		}
+		mDepth = common;
+		for (int i = common; i < prefix.length(); i++) {
+			append(prefix.charAt(i));
+		}
+	}
+
+	/**
+	 * True if the prefix itself is a word.
+	 */
+	public boolean isWord() {
+		int node = node();
+		return node != Dictionary.NONE && mDictionary.frequency(node) > 0;
+	}
+
+	/**
+	 * Adds up to max words starting with the prefix to out, most frequent
+	 * first.  The subtree is searched best first, so only about max nodes
+	 * per level are visited however large the dictionary is.
+	 */
+	public int complete(int max, List<String> out) {
+		int start = node();
+		if (start == Dictionary.NONE || max <= 0) {
+			return 0;
+		}
+		final Dictionary d = mDictionary;
+		int heapSize = 0;
+		if (d.frequency(start) > 0) {
+			heapSize = push(heapSize, d.frequency(start), start, true);
+		}
+		int child = d.firstChild(start);
+		if (child != Dictionary.NONE) {
+			heapSize = push(heapSize, d.maxFrequency(child), child, false);
+		}
+		int found = 0;
+		while (heapSize > 0 && found < max) {
+			long top = mHeap[0];
+			heapSize = pop(heapSize);
+			int node = (int) (top >>> 1) & 0x7fffffff;
+			if ((top & 1) != 0) {
+				out.add(word(node));
+				found++;
+				continue;
+			}
+			if (d.frequency(node) > 0) {
+				heapSize = push(heapSize, d.frequency(node), node, true);
+			}
+			int c = d.firstChild(node);
+			if (c != Dictionary.NONE) {
+				heapSize = push(heapSize, d.maxFrequency(c), c, false);
+			}
+			int s = d.nextSibling(node);
+			if (s != Dictionary.NONE) {
+				heapSize = push(heapSize, d.maxFrequency(s), s, false);
+			}
+		}
+		return found;
+	}
+
+	private String word(int node) {
+		int len = 0;
+		for (int n = node; n != mDictionary.root(); n = mDictionary.parent(n)) {
+			len++;
+		}
+		char[] chars = new char[len];
+		for (int n = node; n != mDictionary.root(); n = mDictionary.parent(n)) {
+			chars[--len] = mDictionary.label(n);
+		}
+		return new String(chars);
+	}
+
+	// a binary max heap of (priority, node, is word) packed into longs
+
+	private int push(int size, int priority, int node, boolean word) {
+		if (size == mHeap.length) {
+			long[] heap = new long[size * 2];
+			System.arraycopy(mHeap, 0, heap, 0, size);
+			mHeap = heap;
+		}
+		long v = ((long) priority << 32) | ((long) node << 1) | (word ? 1 : 0);
+		int i = size;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (mHeap[parent] >= v) {
+				break;
+			}
+			mHeap[i] = mHeap[parent];
+			i = parent;
+		}
+		mHeap[i] = v;
+		return size + 1;
+	}
+
+	private int pop(int size) {
+		long v = mHeap[--size];
+		int i = 0;
+		while (true) {
+			int c = i * 2 + 1;
+			if (c >= size) {
+				break;
+			}
+			if (c + 1 < size && mHeap[c + 1] > mHeap[c]) {
+				c++;
+			}
+			if (v >= mHeap[c]) {
+				break;
+			}
+			mHeap[i] = mHeap[c];
+			i = c;
+		}
+		if (size > 0) {
+			mHeap[i] = v;
+		}
+		return size;
+	}
+}
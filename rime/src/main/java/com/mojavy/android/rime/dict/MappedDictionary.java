@@ -0,0 +1,116 @@
+package com.mojavy.android.pima.dict;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link Dictionary} queried in place from a file written by
+ * {@link DictionaryCompiler}.  Opening one only maps the file, so it costs
+ * the same whatever the size of the dictionary, and the pages are shared
+ * with the page cache instead of being copied onto the heap.
+ *
+ * The file is a header of three ints (magic, version, node count) followed
+ * by one array per node field: the labels as chars, padded to a multiple
+ * of four bytes, then parents, first children, next siblings, frequencies
+ * and best frequencies as ints.  Nodes refer to each other by index only.
+ */
+public class MappedDictionary implements Dictionary {
+
+	static final int MAGIC = 0x52444943; // RDIC
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 12;
+
+	private final int mSize;
+	private final CharBuffer mLabels;
+	private final IntBuffer mParents;
+	private final IntBuffer mFirstChildren;
+	private final IntBuffer mNextSiblings;
+	private final IntBuffer mFrequencies;
+	private final IntBuffer mMaxFrequencies;
+
+	public MappedDictionary(ByteBuffer buf) throws IOException {
+		if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+			throw new IOException("not a dictionary file");
+		}
+		mSize = buf.getInt(8);
+		if (buf.capacity() != fileSize(mSize)) {
+			throw new IOException("dictionary file is truncated");
+		}
+		int offset = HEADER_SIZE;
+		mLabels = slice(buf, offset).asCharBuffer();
+		offset += labelsSize(mSize);
+		mParents = slice(buf, offset).asIntBuffer();
+		offset += mSize * 4;
+		mFirstChildren = slice(buf, offset).asIntBuffer();
+		offset += mSize * 4;
+		mNextSiblings = slice(buf, offset).asIntBuffer();
+		offset += mSize * 4;
+		mFrequencies = slice(buf, offset).asIntBuffer();
+		offset += mSize * 4;
+		mMaxFrequencies = slice(buf, offset).asIntBuffer();
+	}
+
+	public static MappedDictionary open(File file) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = f.getChannel();
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			// the mapping stays valid after the channel is closed
+			return new MappedDictionary(buf);
+		} finally {
+			f.close();
+		}
+	}
+
+	static int labelsSize(int nodes) {
+		return (nodes * 2 + 3) & ~3;
+	}
+
+	static int fileSize(int nodes) {
+		return HEADER_SIZE + labelsSize(nodes) + nodes * 4 * 5;
+	}
+
+	private static ByteBuffer slice(ByteBuffer buf, int offset) {
+		ByteBuffer b = buf.duplicate();
+		b.position(offset);
+		return b.slice();
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public int root() {
+		return 0;
+	}
+
+	public int parent(int node) {
+		return mParents.get(node);
+	}
+
+	public int firstChild(int node) {
+		return mFirstChildren.get(node);
+	}
+
+	public int nextSibling(int node) {
+		return mNextSiblings.get(node);
+	}
+
+	public char label(int node) {
+		return mLabels.get(node);
+	}
+
+	public int frequency(int node) {
+		return mFrequencies.get(node);
+	}
+
+	public int maxFrequency(int node) {
+		return mMaxFrequencies.get(node);
+	}
+}
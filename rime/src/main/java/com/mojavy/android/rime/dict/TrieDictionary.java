@@ -0,0 +1,201 @@
+package com.mojavy.android.pima.dict;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A {@link Dictionary} held in flat arrays on the heap.  It is built from
+ * a word list with one "word[TAB]frequency" entry per line.  Words are
+ * stored in lower case, which is how {@link DictionaryCursor} looks them
+ * up.
+ */
+public class TrieDictionary implements Dictionary {
+
+	private final char[] mLabels;
+	private final int[] mParents;
+	private final int[] mFirstChildren;
+	private final int[] mNextSiblings;
+	private final int[] mFrequencies;
+	private final int[] mMaxFrequencies;
+
+	private TrieDictionary(int size) {
+		mLabels = new char[size];
+		mParents = new int[size];
+		mFirstChildren = new int[size];
+		mNextSiblings = new int[size];
+		mFrequencies = new int[size];
+		mMaxFrequencies = new int[size];
+	}
+
+	public int size() {
+		return mLabels.length;
+	}
+
+	public int root() {
+		return 0;
+	}
+
+	public int parent(int node) {
+		return mParents[node];
+	}
+
+	public int firstChild(int node) {
+		return mFirstChildren[node];
+	}
+
+	public int nextSibling(int node) {
+		return mNextSiblings[node];
+	}
+
+	public char label(int node) {
+		return mLabels[node];
+	}
+
+	public int frequency(int node) {
+		return mFrequencies[node];
+	}
+
+	public int maxFrequency(int node) {
+		return mMaxFrequencies[node];
+	}
+
+	/**
+	 * Reads a word list.  Lines that do not parse are skipped, and a missing
+	 * frequency counts as 1.
+	 */
+	public static TrieDictionary load(Reader reader) throws IOException {
+		Builder b = new Builder();
+		BufferedReader in = new BufferedReader(reader);
+		String line;
+		while ((line = in.readLine()) != null) {
+			int tab = line.indexOf('\t');
+			String word = tab >= 0 ? line.substring(0, tab) : line;
+			int freq = 1;
+			if (tab >= 0) {
+				try {
+					freq = Integer.parseInt(line.substring(tab + 1).trim());
+				} catch (NumberFormatException e) {
+					continue;
+				}
+			}
+			if (word.length() > 0 && freq > 0) {
+				b.add(word, freq);
+			}
+		}
+		return b.build();
+	}
+
+	/**
+	 * Collects words into a pointer based trie, and flattens it into arrays
+	 * with the children of every node sorted by their best frequency.
+	 */
+	public static class Builder {
+
+		private static class Node {
+			final char label;
+			int frequency;
+			int maxFrequency;
+			Node[] children = EMPTY;
+			int childCount;
+
+			Node(char label) {
+				this.label = label;
+			}
+
+			Node child(char c, boolean create) {
+				for (int i = 0; i < childCount; i++) {
+					if (children[i].label == c) {
+						return children[i];
+					}
+				}
+				if (!create) {
+					return null;
+				}
+				if (childCount == children.length) {
+					Node[] a = new Node[Math.max(2, childCount * 2)];
+					System.arraycopy(children, 0, a, 0, childCount);
+					children = a;
+				}
+				Node n = new Node(c);
+				children[childCount++] = n;
+				return n;
+			}
+		}
+
+		private static final Node[] EMPTY = new Node[0];
+
+		private static final Comparator<Node> BY_MAX_FREQUENCY = new Comparator<Node>() {
+			public int compare(Node a, Node b) {
+				return a.maxFrequency > b.maxFrequency ? -1 : a.maxFrequency < b.maxFrequency ? 1 : 0;
+			}
+		};
+
+		private final Node mRoot = new Node('\0');
+		private int mNodes = 1;
+
+		/**
+		 * Adds a word, lower cased the same way as the cursor does; a word
+		 * added twice keeps its best frequency.
+		 */
+		public Builder add(String word, int frequency) {
+			Node n = mRoot;
+			for (int i = 0; i < word.length(); i++) {
+				char ch = Character.toLowerCase(word.charAt(i));
+				Node c = n.child(ch, false);
+				if (c == null) {
+					c = n.child(ch, true);
+					mNodes++;
+				}
+				n = c;
+			}
+			n.frequency = Math.max(n.frequency, frequency);
+			return this;
+		}
+
+		public TrieDictionary build() {
+			computeMaxFrequency(mRoot);
+			TrieDictionary d = new TrieDictionary(mNodes);
+			// breadth first, so that siblings are adjacent
+			List<Node> queue = new ArrayList<Node>(mNodes);
+			queue.add(mRoot);
+			d.mParents[0] = NONE;
+			d.mNextSiblings[0] = NONE;
+			int next = 1;
+			for (int i = 0; i < queue.size(); i++) {
+				Node n = queue.get(i);
+				d.mLabels[i] = n.label;
+				d.mFrequencies[i] = n.frequency;
+				d.mMaxFrequencies[i] = n.maxFrequency;
+				if (n.childCount == 0) {
+					d.mFirstChildren[i] = NONE;
+					continue;
+				}
+				Arrays.sort(n.children, 0, n.childCount, BY_MAX_FREQUENCY);
+				d.mFirstChildren[i] = next;
+				for (int j = 0; j < n.childCount; j++) {
+					queue.add(n.children[j]);
+					d.mParents[next + j] = i;
+					d.mNextSiblings[next + j] = j + 1 < n.childCount ? next + j + 1 : NONE;
+				}
+				next += n.childCount;
+				// the pointer trie is not needed any more
+				n.children = EMPTY;
+			}
+			return d;
+		}
+
+		private static int computeMaxFrequency(Node n) {
+			int max = n.frequency;
+			for (int i = 0; i < n.childCount; i++) {
+				max = Math.max(max, computeMaxFrequency(n.children[i]));
+			}
+			n.maxFrequency = max;
+			return max;
+		}
+	}
+}
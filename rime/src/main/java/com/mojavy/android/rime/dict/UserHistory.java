@@ -0,0 +1,354 @@
+package com.mojavy.android.pima.dict;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Words and word pairs the user has committed, with their counts.
+ *
+ * Every commit is appended to a log on a background thread, so the key path
+ * never waits for the disk.  That thread keeps its own copy of the counts
+ * on disk, and once the log grows past {@link #COMPACT_AFTER} records it
+ * writes them to a new snapshot and starts a new log.  Logs are numbered;
+ * the snapshot records the number of the first log that is not in it, and
+ * loading replays that log and any later one.  Every record carries its
+ * length and a CRC, so a record torn by the process dying mid-write is
+ * dropped, together with anything after it, and cut off the log so that
+ * new records are not appended behind it.
+ */
+public class UserHistory {
+
+	static final int COMPACT_AFTER = 512;
+
+	private static final int MAGIC = 0x55484953; // UHIS
+	private static final byte WORD = 'W';
+	private static final byte BIGRAM = 'B';
+
+	private final File mDir;
+	private final String mName;
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+	private final TreeMap<String, Integer> mWords = new TreeMap<String, Integer>();
+	private final HashMap<String, Integer> mBigrams = new HashMap<String, Integer>();
+
+	// only touched on the executor
+	private final HashMap<String, Integer> mDiskWords = new HashMap<String, Integer>();
+	private final HashMap<String, Integer> mDiskBigrams = new HashMap<String, Integer>();
+	private int mLogRecords;
+	private int mGeneration;
+	private FileOutputStream mLog;
+
+	public UserHistory(File dir, String name) {
+		mDir = dir;
+		mName = name;
+	}
+
+	/**
+	 * Reads the snapshot and the logs in the background.  Commits recorded
+	 * meanwhile are kept.
+	 */
+	public void load() {
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				loadFiles();
+			}
+		});
+	}
+
+	/**
+	 * Counts a committed word, following prev (null at the start of a
+	 * sentence or field).
+	 */
+	public void record(String prev, String word) {
+		final String w = word.toLowerCase();
+		final String p = prev != null ? prev.toLowerCase() : null;
+		synchronized (this) {
+			count(mWords, mBigrams, p, w);
+		}
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				append(p, w);
+			}
+		});
+	}
+
+	/**
+	 * Adds up to max learned words starting with prefix to out, the ones
+	 * most often typed after prev first.
+	 */
+	public synchronized void complete(String prev, String prefix, int max, List<String> out) {
+		prefix = prefix.toLowerCase();
+		SortedMap<String, Integer> range = mWords.subMap(prefix, prefix + Character.MAX_VALUE);
+		if (range.isEmpty()) {
+			return;
+		}
+		String p = prev != null ? prev.toLowerCase() + '\t' : null;
+		List<String> words = new ArrayList<String>();
+		List<Long> scores = new ArrayList<Long>();
+		for (Map.Entry<String, Integer> e : range.entrySet()) {
+			long score = e.getValue();
+			if (p != null) {
+				Integer b = mBigrams.get(p + e.getKey());
+				if (b != null) {
+					// pairs outrank single words
+					score += (long) b << 32;
+				}
+			}
+			int i = words.size();
+			while (i > 0 && scores.get(i - 1) < score) {
+				i--;
+			}
+			if (i < max) {
+				words.add(i, e.getKey());
+				scores.add(i, score);
+				if (words.size() > max) {
+					words.remove(max);
+					scores.remove(max);
+				}
+			}
+		}
+		out.addAll(words);
+	}
+
+	public synchronized int size() {
+		return mWords.size();
+	}
+
+	private static <K> void increment(Map<K, Integer> map, K key, int n) {
+		Integer c = map.get(key);
+		map.put(key, c != null ? c + n : n);
+	}
+
+	private static void count(Map<String, Integer> words, Map<String, Integer> bigrams,
+			String prev, String word) {
+		increment(words, word, 1);
+		if (prev != null) {
+			increment(bigrams, prev + '\t' + word, 1);
+		}
+	}
+
+	private File snapshotFile() {
+		return new File(mDir, mName + ".snapshot");
+	}
+
+	private File logFile(int generation) {
+		return new File(mDir, mName + "-" + generation + ".log");
+	}
+
+	private void loadFiles() {
+		Map<String, Integer> words = new HashMap<String, Integer>();
+		Map<String, Integer> bigrams = new HashMap<String, Integer>();
+		int generation = readSnapshot(words, bigrams);
+		int last = generation;
+		int records = 0;
+		for (int g = generation; logFile(g).exists(); g++) {
+			records += readLog(logFile(g), words, bigrams);
+			last = g;
+		}
+		// logs already folded into the snapshot
+		for (int g = generation - 1; g >= 0 && logFile(g).delete(); g--) {
+		}
+		mGeneration = last;
+		mLogRecords += records;
+		for (Map.Entry<String, Integer> e : words.entrySet()) {
+			increment(mDiskWords, e.getKey(), e.getValue());
+		}
+		for (Map.Entry<String, Integer> e : bigrams.entrySet()) {
+			increment(mDiskBigrams, e.getKey(), e.getValue());
+		}
+		synchronized (this) {
+			for (Map.Entry<String, Integer> e : words.entrySet()) {
+				increment(mWords, e.getKey(), e.getValue());
+			}
+			for (Map.Entry<String, Integer> e : bigrams.entrySet()) {
+				increment(mBigrams, e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	private int readSnapshot(Map<String, Integer> words, Map<String, Integer> bigrams) {
+		File f = snapshotFile();
+		if (!f.exists()) {
+			return 0;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				if (in.readInt() != MAGIC) {
+					return 0;
+				}
+				int generation = in.readInt();
+				byte[] payload;
+				while ((payload = readRecord(in)) != null) {
+					DataInputStream r = new DataInputStream(new ByteArrayInputStream(payload));
+					byte type = r.readByte();
+					String key = r.readUTF();
+					int count = r.readInt();
+					increment(type == WORD ? words : bigrams, key, count);
+				}
+				return generation;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Counts the intact records of a log, and cuts off whatever follows
+	 * them.  Returns the number of records.
+	 */
+	private int readLog(File f, Map<String, Integer> words, Map<String, Integer> bigrams) {
+		int records = 0;
+		long intact = 0;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				byte[] payload;
+				while ((payload = readRecord(in)) != null) {
+					DataInputStream r = new DataInputStream(new ByteArrayInputStream(payload));
+					String prev = r.readUTF();
+					String word = r.readUTF();
+					count(words, bigrams, prev.length() > 0 ? prev : null, word);
+					records++;
+					// length, payload and CRC
+					intact += 4 + payload.length + 4;
+				}
+			} finally {
+				in.close();
+			}
+			if (f.length() > intact) {
+				RandomAccessFile raf = new RandomAccessFile(f, "rw");
+				try {
+					raf.setLength(intact);
+				} finally {
+					raf.close();
+				}
+			}
+		} catch (IOException e) {
+			// keep what could be read
+		}
+		return records;
+	}
+
+	/**
+	 * Returns the next intact record, or null at the end or at a torn one.
+	 */
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			int len = in.readInt();
+			if (len < 0 || len > 1 << 20) {
+				return null;
+			}
+			byte[] payload = new byte[len];
+			in.readFully(payload);
+			int crc = in.readInt();
+			CRC32 c = new CRC32();
+			c.update(payload);
+			return (int) c.getValue() == crc ? payload : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+		CRC32 c = new CRC32();
+		c.update(payload);
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.writeInt((int) c.getValue());
+	}
+
+	private static byte[] encode(String prev, String word) {
+		try {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			DataOutputStream p = new DataOutputStream(payload);
+			p.writeUTF(prev != null ? prev : "");
+			p.writeUTF(word);
+			ByteArrayOutputStream rec = new ByteArrayOutputStream();
+			writeRecord(new DataOutputStream(rec), payload.toByteArray());
+			return rec.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void append(String prev, String word) {
+		count(mDiskWords, mDiskBigrams, prev, word);
+		try {
+			if (mLog == null) {
+				mLog = new FileOutputStream(logFile(mGeneration), true);
+			}
+			mLog.write(encode(prev, word));
+		} catch (IOException e) {
+			// the history is only a hint, losing a record is fine
+		}
+		if (++mLogRecords >= COMPACT_AFTER) {
+			mLogRecords = 0;
+			compact(mDiskWords, mDiskBigrams);
+		}
+	}
+
+	private void compact(Map<String, Integer> words, Map<String, Integer> bigrams) {
+		int old = mGeneration;
+		try {
+			// later records go to the next log, which the snapshot points at
+			if (mLog != null) {
+				mLog.close();
+				mLog = null;
+			}
+			mGeneration = old + 1;
+			File tmp = new File(mDir, mName + ".snapshot.tmp");
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeInt(MAGIC);
+				out.writeInt(mGeneration);
+				writeCounts(out, WORD, words);
+				writeCounts(out, BIGRAM, bigrams);
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(snapshotFile())) {
+				throw new IOException("rename failed");
+			}
+			logFile(old).delete();
+		} catch (IOException e) {
+			// the old snapshot and the logs are still complete
+		}
+	}
+
+	private static void writeCounts(DataOutputStream out, byte type, Map<String, Integer> counts)
+			throws IOException {
+		for (Map.Entry<String, Integer> e : counts.entrySet()) {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			DataOutputStream p = new DataOutputStream(payload);
+			p.writeByte(type);
+			p.writeUTF(e.getKey());
+			p.writeInt(e.getValue());
+			writeRecord(out, payload.toByteArray());
+		}
+	}
+}
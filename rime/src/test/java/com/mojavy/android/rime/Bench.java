@@ -0,0 +1,55 @@
+package com.mojavy.android.pima;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * A minimal timing loop for the benchmarks under src/test, which are run by
+ * hand on a desktop JVM rather than by the test suite, e.g.
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes com.mojavy.android.pima.KeyChordBenchmark
+ * </pre>
+ *
+ * Each case is warmed up first, and reports the time and, where the JVM can
+ * tell, the bytes allocated per operation.
+ */
+public class Bench {
+
+	public interface Case {
+		/** runs the operation n times; the result keeps it from being optimized away */
+		long run(int n);
+	}
+
+	private static volatile long sSink;
+
+	public static void run(String name, int n, Case c) {
+		for (int i = 0; i < 5; i++) {
+			sSink += c.run(n);
+		}
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		sSink += c.run(n);
+		long ns = System.nanoTime() - start;
+		long allocated = allocatedBytes() - bytes;
+		System.out.println(String.format("%-40s %10.1f ns/op %10s", name, (double) ns / n,
+				bytes >= 0 ? String.format("%.1f B/op", (double) allocated / n) : ""));
+	}
+
+	/**
+	 * The bytes allocated by this thread so far, or -1 if the JVM does not
+	 * say.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		try {
+			// only HotSpot's own interface has it
+			Method m = Class.forName("com.sun.management.ThreadMXBean")
+					.getMethod("getThreadAllocatedBytes", long.class);
+			return (Long) m.invoke(bean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.mojavy.android.pima;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.mojavy.android.pima.util.Protocol;
+
+public class BindingCompilerTest {
+
+	private static KeyBindingTable parse(String... lines) {
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines) {
+			sb.append(line).append('\n');
+		}
+		return BindingCompiler.parse(sb.toString());
+	}
+
+	private static String refusal(String config) {
+		StringBuilder reason = new StringBuilder();
+		assertNull(BindingCompiler.parse(config, reason));
+		return reason.toString();
+	}
+
+	@Test
+	public void compilesBuiltinBindings() {
+		KeyBindingTable t = parse(
+				"# movement",
+				"bind_key(\"C-f\") { RIME::BuiltIn::right }",
+				"bind_key( \"C-b\" ) {RIME::BuiltIn::left} # back",
+				"",
+				"bind_key(\"C-e\") { RIME::BuiltIn::end_of_line }");
+		assertNotNull(t);
+		assertEquals(3, t.size());
+		assertEquals(Protocol.BUILTIN_RIGHT, t.get(KeyChord.parse("C-f")));
+		assertEquals(Protocol.BUILTIN_LEFT, t.get(KeyChord.parse("C-b")));
+		assertEquals(Protocol.BUILTIN_END_OF_LINE, t.get(KeyChord.parse("C-e")));
+	}
+
+	@Test
+	public void otherBindingsAreLeftToTheService() {
+		KeyBindingTable t = parse(
+				"bind_key(\"C-f\") { RIME::BuiltIn::right }",
+				"bind_key(\"C-t\") { |s| s.upcase }",
+				"bind_key(\"C-g\") { RIME::BuiltIn::no_such_builtin }");
+		assertNotNull(t);
+		assertEquals(Protocol.BUILTIN_RIGHT, t.get(KeyChord.parse("C-f")));
+		assertEquals(KeyBindingTable.REMOTE, t.get(KeyChord.parse("C-t")));
+		assertEquals(KeyBindingTable.REMOTE, t.get(KeyChord.parse("C-g")));
+	}
+
+	@Test
+	public void laterBindingsReplaceEarlierOnes() {
+		KeyBindingTable t = parse(
+				"bind_key(\"C-f\") { RIME::BuiltIn::right }",
+				"bind_key(\"C-f\") { |s| s }");
+		assertEquals(1, t.size());
+		assertEquals(KeyBindingTable.REMOTE, t.get(KeyChord.parse("C-f")));
+	}
+
+	@Test
+	public void configsThatLoadFilesAreRefused() {
+		assertTrue(refusal("require_relative 'keys'\n").startsWith("config loads"));
+		assertTrue(refusal("load 'keys.rb'\n").startsWith("config loads"));
+		assertTrue(refusal("require './keys'\n").startsWith("config loads"));
+		// a library from the load path can not bind keys by itself
+		assertNotNull(parse("require 'json'"));
+	}
+
+	@Test
+	public void dynamicBindingsAreRefused() {
+		assertTrue(refusal("[\"C-a\"].each { |k|\n  bind_key(k) { RIME::BuiltIn::right }\n}\n")
+				.startsWith("dynamic"));
+		assertTrue(refusal("if true then bind_key(\"C-a\") { 1 } end\n").startsWith("dynamic"));
+		// anything else naming bind_key might call it
+		assertTrue(refusal("send(:bind_key, \"C-a\") { 1 }\n").startsWith("dynamic"));
+	}
+
+	@Test
+	public void blockCommentsAndHeredocsAreRefused() {
+		assertTrue(refusal("=begin\nbind_key(\"C-f\") { RIME::BuiltIn::right }\n=end\n")
+				.startsWith("block comment"));
+		assertTrue(refusal("s = <<~EOS\nbind_key(\"C-f\") { 1 }\nEOS\n").startsWith("heredoc"));
+		assertTrue(refusal("s = <<-'EOS'\nx\nEOS\n").startsWith("heredoc"));
+		assertTrue(refusal("s = <<EOS\nx\nEOS\n").startsWith("heredoc"));
+		// a shift or an append is not a heredoc
+		assertNotNull(parse("a = [] << 1", "b = 1 << 2"));
+	}
+}
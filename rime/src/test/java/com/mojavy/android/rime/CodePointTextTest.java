@@ -0,0 +1,29 @@
+package com.mojavy.android.pima;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class CodePointTextTest {
+
+	@Test
+	public void holdsOneCodePoint() {
+		CodePointText t = new CodePointText();
+		assertEquals("a", t.set('a').toString());
+		assertEquals(1, t.length());
+		assertEquals("\ud83d\ude00", t.set(0x1f600).toString());
+		assertEquals(2, t.length());
+		assertEquals('\ude00', t.charAt(1));
+	}
+
+	@Test
+	public void invalidCodePointsAreTakenAsAChar() {
+		CodePointText t = new CodePointText();
+		assertEquals("\uffff", t.set(-1).toString());
+		assertEquals("\u0001", t.set(0x110001).toString());
+		StringBuilder sb = new StringBuilder("x");
+		CodePointText.append(sb, -1);
+		CodePointText.append(sb, 0x1f600);
+		assertEquals("x\uffff\ud83d\ude00", sb.toString());
+	}
+}
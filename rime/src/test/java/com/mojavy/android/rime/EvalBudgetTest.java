@@ -0,0 +1,179 @@
+package com.mojavy.android.pima;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EvalBudgetTest {
+
+	/** Records what the keyboard was told to do about a stopped script. */
+	private static class Recorder implements EvalBudget.Fallback {
+		final StringBuilder calls = new StringBuilder();
+
+		public void key(int code, String budget) {
+			calls.append("key ").append(code).append(' ').append(budget).append(';');
+		}
+
+		public void eval(String budget) {
+			calls.append("eval ").append(budget).append(';');
+		}
+	}
+
+	@Test
+	public void sendsTheBudgetsOnce() {
+		StandInHost host = new StandInHost();
+		EvalBudget budget = new EvalBudget(host);
+		assertEquals(4, budget.send());
+		assertEquals(0, budget.send());
+		assertEquals(4, host.puts);
+		// the service may have been restarted: send them again
+		budget.reset();
+		assertEquals(4, budget.send());
+		assertEquals(8, host.puts);
+		assertEquals(EvalBudget.DEFAULT_EVAL_TIME_MS, host.budget(EvalBudget.KEY_BUDGET_EVAL_TIME));
+		assertEquals(EvalBudget.keybindTime(KeyDispatcher.DEFAULT_TIMEOUT_MS),
+				host.budget(EvalBudget.KEY_BUDGET_KEYBIND_TIME));
+	}
+
+	@Test
+	public void keybindTimeFollowsTheDispatcherTimeout() {
+		StandInHost host = new StandInHost();
+		EvalBudget budget = new EvalBudget(host);
+		// not sent yet: goes out with the others
+		assertEquals(0, budget.setKeybindTimeout(4000));
+		budget.send();
+		assertEquals(3000, host.budget(EvalBudget.KEY_BUDGET_KEYBIND_TIME));
+		assertEquals(1, budget.setKeybindTimeout(1000));
+		assertEquals(750, host.budget(EvalBudget.KEY_BUDGET_KEYBIND_TIME));
+		assertEquals(0, budget.setKeybindTimeout(1000));
+		assertEquals(5, host.puts);
+	}
+
+	@Test
+	public void countsExceededReplies() {
+		EvalBudget budget = new EvalBudget(new StandInHost());
+		assertNull(budget.exceeded((String) null));
+		assertEquals(EvalBudget.HEAP, budget.exceeded(EvalBudget.HEAP));
+		assertEquals(1, budget.mExceeded);
+	}
+
+	@Test
+	public void hostStopsAScriptOverItsTime() throws InterruptedException {
+		StandInHost host = new StandInHost();
+		EvalBudget budget = new EvalBudget(host);
+		budget.setKeybindTimeout(KeyDispatcher.DEFAULT_TIMEOUT_MS);
+		budget.send();
+		long start = System.currentTimeMillis();
+		String exceeded = host.runKeybind(new StandInHost.Script() {
+			public void run(StandInHost host) throws InterruptedException {
+				Thread.sleep(60000);
+			}
+		});
+		assertEquals(EvalBudget.TIME, budget.exceeded(exceeded));
+		// the host stops the script before the dispatcher gives up on the key
+		assertTrue(host.appliedTimeMs < KeyDispatcher.DEFAULT_TIMEOUT_MS);
+		// and does not wait for it to finish
+		assertTrue(System.currentTimeMillis() - start < 30000);
+	}
+
+	@Test
+	public void hostStopsAScriptOverItsHeap() throws InterruptedException {
+		StandInHost host = new StandInHost();
+		new EvalBudget(host).send();
+		String exceeded = host.runEval(new StandInHost.Script() {
+			public void run(StandInHost host) {
+				for (;;) {
+					host.allocate(1 << 20);
+				}
+			}
+		});
+		assertEquals(EvalBudget.HEAP, exceeded);
+	}
+
+	@Test
+	public void hostStopsAScriptOverItsOutput() throws InterruptedException {
+		StandInHost host = new StandInHost();
+		EvalBudget budget = new EvalBudget(host);
+		budget.send();
+		String exceeded = host.runEval(new StandInHost.Script() {
+			public void run(StandInHost host) {
+				for (;;) {
+					host.print("0123456789");
+				}
+			}
+		});
+		assertEquals(EvalBudget.OUTPUT, exceeded);
+		assertEquals(budget.getOutputChars(), host.output().length());
+	}
+
+	@Test
+	public void scriptsWithinTheirBudgetsFinish() throws InterruptedException {
+		StandInHost host = new StandInHost();
+		new EvalBudget(host).send();
+		String exceeded = host.runEval(new StandInHost.Script() {
+			public void run(StandInHost host) {
+				host.allocate(1024);
+				host.print("42");
+			}
+		});
+		assertNull(exceeded);
+		assertEquals("42", host.output());
+	}
+
+	@Test
+	public void aStoppedKeyBindingFallsBackToItsKey() throws InterruptedException {
+		StandInHost host = new StandInHost();
+		EvalBudget budget = new EvalBudget(host);
+		budget.setKeybindTimeout(200);
+		budget.send();
+		String exceeded = host.runKeybind(new StandInHost.Script() {
+			public void run(StandInHost host) throws InterruptedException {
+				Thread.sleep(60000);
+			}
+		});
+		Recorder recorder = new Recorder();
+		assertTrue(budget.handle(exceeded, false, 'a', recorder));
+		assertEquals("key 97 time;", recorder.calls.toString());
+	}
+
+	@Test
+	public void everyBudgetFallsBackAtOnce() {
+		EvalBudget budget = new EvalBudget(new StandInHost());
+		Recorder recorder = new Recorder();
+		assertTrue(budget.handle(EvalBudget.TIME, false, 'a', recorder));
+		assertTrue(budget.handle(EvalBudget.HEAP, false, 'b', recorder));
+		assertTrue(budget.handle(EvalBudget.OUTPUT, false, 'c', recorder));
+		assertEquals("key 97 time;key 98 heap;key 99 output;", recorder.calls.toString());
+		assertEquals(3, budget.mExceeded);
+	}
+
+	@Test
+	public void aStoppedEvalEnds() throws InterruptedException {
+		StandInHost host = new StandInHost();
+		EvalBudget budget = new EvalBudget(host);
+		budget.send();
+		String exceeded = host.runEval(new StandInHost.Script() {
+			public void run(StandInHost host) {
+				for (;;) {
+					host.allocate(1 << 20);
+				}
+			}
+		});
+		Recorder recorder = new Recorder();
+		assertTrue(budget.handle(exceeded, true, 'a', recorder));
+		assertEquals("eval heap;", recorder.calls.toString());
+	}
+
+	@Test
+	public void otherRepliesAreLeftAlone() {
+		EvalBudget budget = new EvalBudget(new StandInHost());
+		Recorder recorder = new Recorder();
+		assertFalse(budget.handle((String) null, false, 'a', recorder));
+		assertFalse(budget.handle((String) null, true, 'a', recorder));
+		assertEquals("", recorder.calls.toString());
+		assertEquals(0, budget.mExceeded);
+	}
+}
@@ -0,0 +1,89 @@
+package com.mojavy.android.pima;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GapBufferTest {
+
+	@Test
+	public void replaceInsertsAndDeletes() {
+		GapBuffer b = new GapBuffer();
+		b.set("hello world");
+		b.replace(5, 5, ",");
+		assertEquals("hello, world", b.toString());
+		b.replace(0, 5, "goodbye");
+		assertEquals("goodbye, world", b.toString());
+		b.replace(7, 14, "");
+		assertEquals("goodbye", b.toString());
+		assertEquals(7, b.length());
+	}
+
+	@Test
+	public void subSequenceAcrossTheGap() {
+		GapBuffer b = new GapBuffer(16);
+		b.set("abcdefghij");
+		// leaves the gap after "abc"
+		b.replace(3, 3, "XYZ");
+		assertEquals("abcXYZdefghij", b.toString());
+		assertEquals("cXYZd", b.subSequence(2, 7).toString());
+		assertEquals("", b.subSequence(4, 4).toString());
+		assertEquals("ghij", b.subSequence(9, 13).toString());
+		assertEquals('Z', b.charAt(5));
+		assertEquals('d', b.charAt(6));
+	}
+
+	@Test
+	public void growsPastItsCapacity() {
+		GapBuffer b = new GapBuffer(16);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			String s = Integer.toString(i);
+			int at = expected.length() / 2;
+			b.replace(at, at, s);
+			expected.insert(at, s);
+		}
+		assertEquals(expected.toString(), b.toString());
+	}
+
+	@Test
+	public void randomEditsMatchAStringBuilder() {
+		Random r = new Random(42);
+		GapBuffer b = new GapBuffer(16);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			int start = r.nextInt(expected.length() + 1);
+			int end = start + r.nextInt(Math.min(8, expected.length() - start) + 1);
+			StringBuilder text = new StringBuilder();
+			for (int n = r.nextInt(6); n > 0; n--) {
+				text.append((char) ('a' + r.nextInt(26)));
+			}
+			// both String and other CharSequences
+			CharSequence cs = i % 2 == 0 ? text.toString() : text;
+			b.replace(start, end, cs);
+			expected.replace(start, end, text.toString());
+			assertEquals(expected.length(), b.length());
+			if (expected.length() > 0) {
+				int at = r.nextInt(expected.length());
+				assertEquals(expected.charAt(at), b.charAt(at));
+			}
+		}
+		assertEquals(expected.toString(), b.toString());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void charAtPastTheEnd() {
+		GapBuffer b = new GapBuffer();
+		b.set("abc");
+		b.charAt(3);
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void replacePastTheEnd() {
+		GapBuffer b = new GapBuffer();
+		b.set("abc");
+		b.replace(2, 4, "x");
+	}
+}
@@ -0,0 +1,139 @@
+package com.mojavy.android.pima;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class KeyBindingTableTest {
+
+	private static final int BUILTIN = 7;
+
+	@Test
+	public void everyKeyIsRemoteUntilLoaded() {
+		KeyBindingTable t = new KeyBindingTable();
+		assertEquals(KeyBindingTable.REMOTE, t.lookup(KeyChord.parse("a")));
+		assertEquals(KeyBindingTable.REMOTE, t.lookup(KeyChord.parse("C-f")));
+		assertEquals(2, t.mRemoteLookups);
+	}
+
+	@Test
+	public void unboundKeysAreResolvedLocally() {
+		KeyBindingTable t = new KeyBindingTable();
+		assertEquals(0, t.load(new String[] { "C-f", "M-x", "F1-h" }, null, null));
+		assertEquals(3, t.size());
+		assertEquals(KeyBindingTable.REMOTE, t.lookup(KeyChord.parse("C-f")));
+		assertEquals(KeyBindingTable.NOT_BOUND, t.lookup(KeyChord.parse("f")));
+		assertEquals(KeyBindingTable.NOT_BOUND, t.lookup(KeyChord.parse("M-f")));
+		assertEquals(1, t.mRemoteLookups);
+		assertEquals(2, t.mLocalLookups);
+	}
+
+	@Test
+	public void evalModeIsNotPartOfTheBinding() {
+		KeyBindingTable t = new KeyBindingTable();
+		t.load(new String[] { "C-f" }, null, null);
+		int chord = KeyChord.of('f', true, false, false, true);
+		assertEquals(KeyBindingTable.REMOTE, t.lookup(chord));
+	}
+
+	@Test
+	public void opcodesFromTheServiceAreKept() {
+		KeyBindingTable t = new KeyBindingTable();
+		t.load(new String[] { "C-f", "C-x" }, new int[] { BUILTIN, -1 }, null);
+		assertEquals(BUILTIN, t.lookup(KeyChord.parse("C-f")));
+		assertEquals(KeyBindingTable.REMOTE, t.lookup(KeyChord.parse("C-x")));
+	}
+
+	@Test
+	public void opcodesFromTheServiceOutliveCompiledBindings() {
+		KeyBindingTable compiled = new KeyBindingTable();
+		compiled.put(KeyChord.parse("C-f"), BUILTIN + 1);
+		compiled.put(KeyChord.parse("C-x"), BUILTIN + 2);
+		KeyBindingTable t = new KeyBindingTable();
+		t.load(new String[] { "C-f", "C-x", "C-t" }, new int[] { BUILTIN, -1, -1 }, "abc");
+		// compiled after the service answered, e.g. on a reload
+		t.setCompiled(compiled, "abc");
+		assertEquals(BUILTIN, t.lookup(KeyChord.parse("C-f")));
+		assertEquals(BUILTIN + 2, t.lookup(KeyChord.parse("C-x")));
+		assertEquals(KeyBindingTable.REMOTE, t.lookup(KeyChord.parse("C-t")));
+		t.setCompiled(null, null);
+		assertEquals(BUILTIN, t.lookup(KeyChord.parse("C-f")));
+		assertEquals(KeyBindingTable.REMOTE, t.lookup(KeyChord.parse("C-x")));
+	}
+
+	@Test
+	public void compiledBindingsWaitForTheService() {
+		KeyBindingTable compiled = new KeyBindingTable();
+		compiled.put(KeyChord.parse("C-f"), BUILTIN);
+		KeyBindingTable t = new KeyBindingTable();
+		t.setCompiled(compiled, "abc");
+		assertEquals(KeyBindingTable.REMOTE, t.lookup(KeyChord.parse("C-f")));
+		t.load(new String[] { "C-f", "C-x" }, null, "abc");
+		assertEquals(BUILTIN, t.lookup(KeyChord.parse("C-f")));
+		assertEquals(KeyBindingTable.REMOTE, t.lookup(KeyChord.parse("C-x")));
+		t.setCompiled(null, null);
+		assertEquals(KeyBindingTable.REMOTE, t.lookup(KeyChord.parse("C-f")));
+	}
+
+	@Test
+	public void compiledBindingsNeedTheSameConfiguration() {
+		KeyBindingTable compiled = new KeyBindingTable();
+		compiled.put(KeyChord.parse("C-f"), BUILTIN);
+		KeyBindingTable t = new KeyBindingTable();
+		t.setCompiled(compiled, "abc");
+		// the service is still running an older configuration
+		t.load(new String[] { "C-f" }, null, "old");
+		assertFalse(t.isCompiledCurrent());
+		assertEquals(KeyBindingTable.REMOTE, t.lookup(KeyChord.parse("C-f")));
+		// or does not say which
+		t.load(new String[] { "C-f" }, null, null);
+		assertEquals(KeyBindingTable.REMOTE, t.lookup(KeyChord.parse("C-f")));
+		t.load(new String[] { "C-f" }, null, "abc");
+		assertTrue(t.isCompiledCurrent());
+		assertEquals(BUILTIN, t.lookup(KeyChord.parse("C-f")));
+		// a reload compiled before the service has caught up
+		t.setCompiled(compiled, "new");
+		assertEquals(KeyBindingTable.REMOTE, t.lookup(KeyChord.parse("C-f")));
+	}
+
+	@Test
+	public void expressionsThatAreNotAChordAreIgnored() {
+		KeyBindingTable t = new KeyBindingTable();
+		assertEquals(2, t.load(new String[] { "C-x C-s", "", "a" }, null, null));
+		assertEquals(1, t.size());
+	}
+
+	@Test
+	public void chordZeroIsAKeyLikeAnyOther() {
+		KeyBindingTable t = new KeyBindingTable();
+		assertEquals(KeyBindingTable.NOT_BOUND, t.get(0));
+		t.put(0, BUILTIN);
+		assertEquals(1, t.size());
+		assertEquals(BUILTIN, t.get(0));
+		assertEquals(2, t.entries().length);
+	}
+
+	@Test
+	public void growsPastItsInitialCapacity() {
+		KeyBindingTable t = new KeyBindingTable();
+		for (int c = 0; c < 1000; c++) {
+			t.put(KeyChord.of(c, c % 2 == 0, c % 3 == 0, false, false), c);
+		}
+		assertEquals(1000, t.size());
+		for (int c = 0; c < 1000; c++) {
+			assertEquals(c, t.get(KeyChord.of(c, c % 2 == 0, c % 3 == 0, false, false)));
+		}
+		assertEquals(KeyBindingTable.NOT_BOUND, t.get(KeyChord.of(5000, false, false, false, false)));
+	}
+
+	@Test
+	public void clearForgetsEverything() {
+		KeyBindingTable t = new KeyBindingTable();
+		t.put(KeyChord.parse("C-f"), BUILTIN);
+		t.clear();
+		assertEquals(0, t.size());
+		assertEquals(KeyBindingTable.NOT_BOUND, t.get(KeyChord.parse("C-f")));
+	}
+}
@@ -0,0 +1,72 @@
+package com.mojavy.android.pima;
+
+/**
+ * Compares building a key expression per key with String.format, as
+ * SoftKeyboard.toKeyExpr used to, against packing the key into a
+ * {@link KeyChord} and building the expression from the cache.
+ */
+public class KeyChordBenchmark {
+
+	private static final int KEYS = 1 << 20;
+
+	private static final int[] CODES = new int[256];
+	private static final boolean[][] MODIFIERS = new boolean[256][];
+	static {
+		String text = "the quick brown fox jumps over the lazy dog. ";
+		for (int i = 0; i < CODES.length; i++) {
+			CODES[i] = text.charAt(i % text.length());
+			// mostly plain keys, with a chord now and then
+			MODIFIERS[i] = new boolean[] { i % 16 == 0, i % 32 == 0, i % 64 == 1, false };
+		}
+	}
+
+	/** the former SoftKeyboard.toKeyExpr */
+	static String toKeyExpr(int code, boolean ctrl, boolean alt, boolean f1, boolean eval) {
+		if (alt && ctrl) {
+			return String.format("C-M-%c", (char) code);
+		} else if (alt) {
+			return String.format("M-%c", (char) code);
+		} else if (ctrl) {
+			return String.format("C-%c", (char) code);
+		} else if (f1) {
+			return String.format("F1-%c", (char) code);
+		} else if (eval) {
+			return String.format("%c", (char) code);
+		} else {
+			return String.format("%c", (char) code);
+		}
+	}
+
+	public static void main(String[] args) {
+		Bench.run("toKeyExpr (String.format)", KEYS / 16, new Bench.Case() {
+			public long run(int n) {
+				long h = 0;
+				for (int i = 0; i < n; i++) {
+					boolean[] m = MODIFIERS[i & 255];
+					h += toKeyExpr(CODES[i & 255], m[0], m[1], m[2], m[3]).length();
+				}
+				return h;
+			}
+		});
+		Bench.run("KeyChord.of", KEYS, new Bench.Case() {
+			public long run(int n) {
+				long h = 0;
+				for (int i = 0; i < n; i++) {
+					boolean[] m = MODIFIERS[i & 255];
+					h += KeyChord.of(CODES[i & 255], m[0], m[1], m[2], m[3]);
+				}
+				return h;
+			}
+		});
+		Bench.run("KeyChord.of + toExpr", KEYS, new Bench.Case() {
+			public long run(int n) {
+				long h = 0;
+				for (int i = 0; i < n; i++) {
+					boolean[] m = MODIFIERS[i & 255];
+					h += KeyChord.toExpr(KeyChord.of(CODES[i & 255], m[0], m[1], m[2], m[3])).length();
+				}
+				return h;
+			}
+		});
+	}
+}
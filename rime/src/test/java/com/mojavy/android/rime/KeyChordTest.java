@@ -0,0 +1,88 @@
+package com.mojavy.android.pima;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class KeyChordTest {
+
+	@Test
+	public void expressionsRoundTrip() {
+		String[] exprs = { "a", "A", "C-f", "M-f", "C-M-i", "F1-h", "\u3042", "C-\u3042" };
+		for (String e : exprs) {
+			assertEquals(e, KeyChord.toExpr(KeyChord.parse(e)));
+		}
+	}
+
+	@Test
+	public void modifiersAreOrderedCanonically() {
+		assertEquals(KeyChord.parse("C-M-x"), KeyChord.parse("M-C-x"));
+		assertEquals("C-M-x", KeyChord.toExpr(KeyChord.parse("M-C-x")));
+	}
+
+	@Test
+	public void matchesTheFormerKeyExpressions() {
+		boolean[] b = { false, true };
+		for (boolean ctrl : b) {
+			for (boolean alt : b) {
+				for (boolean f1 : b) {
+					for (boolean eval : b) {
+						for (int c = ' '; c < 0x7f; c++) {
+							assertEquals(KeyChordBenchmark.toKeyExpr(c, ctrl, alt, f1, eval),
+									KeyChord.toExpr(KeyChord.of(c, ctrl, alt, f1, eval)));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void f1IsIgnoredUnderCtrlOrAlt() {
+		assertEquals(KeyChord.parse("C-h"), KeyChord.of('h', true, false, true, false));
+		assertEquals(KeyChord.parse("M-h"), KeyChord.of('h', false, true, true, false));
+		assertEquals(KeyChord.parse("F1-h"), KeyChord.of('h', false, false, true, false));
+	}
+
+	@Test
+	public void evalModeIsNotPartOfTheExpression() {
+		int chord = KeyChord.of('x', true, false, false, true);
+		assertEquals("C-x", KeyChord.toExpr(chord));
+		assertEquals(KeyChord.parse("C-x"), KeyChord.bindingKey(chord));
+		assertEquals('x', KeyChord.code(chord));
+	}
+
+	@Test
+	public void supplementaryCodePoints() {
+		String smile = new String(Character.toChars(0x1f600));
+		int chord = KeyChord.parse("M-" + smile);
+		assertEquals(0x1f600, KeyChord.code(chord));
+		assertEquals("M-" + smile, KeyChord.toExpr(chord));
+	}
+
+	@Test
+	public void notASingleKey() {
+		assertEquals(0, KeyChord.parse(""));
+		assertEquals(0, KeyChord.parse("C-"));
+		assertEquals(0, KeyChord.parse("C-x C-s"));
+		assertEquals(0, KeyChord.parse("ab"));
+		// a trailing modifier prefix is the key itself
+		assertEquals('-', KeyChord.code(KeyChord.parse("C--")));
+	}
+
+	@Test
+	public void expressionsAreCached() {
+		int chord = KeyChord.parse("C-M-q");
+		assertSame(KeyChord.toExpr(chord), KeyChord.toExpr(chord));
+	}
+
+	@Test
+	public void collidingChordsDoNotShareAnExpression() {
+		// fill every cache slot more than once
+		for (int c = 0; c < 4096; c++) {
+			int chord = KeyChord.of(c + 0x100, c % 2 == 0, false, false, false);
+			assertEquals(chord, KeyChord.parse(KeyChord.toExpr(chord)));
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.mojavy.android.pima;
+
+import com.mojavy.android.pima.util.Protocol;
+
+/**
+ * Replays a 200 key macro the way the keyboard used to, one editor call
+ * per key, against {@link Keymacro#play}, which batches runs of text.  Each
+ * editor call spins for the given number of microseconds (default 50) to
+ * stand in for the IPC to the editor.
+ */
+public class KeymacroReplayBenchmark {
+
+	private static final int KEYS = 200;
+
+	private static long sEditorCalls;
+	private static long sCallNanos;
+
+	private static long editorCall(long h) {
+		sEditorCalls++;
+		long until = System.nanoTime() + sCallNanos;
+		while (System.nanoTime() < until) {
+			h++;
+		}
+		return h;
+	}
+
+	public static void main(String[] args) {
+		sCallNanos = (args.length > 0 ? Integer.parseInt(args[0]) : 50) * 1000L;
+
+		// mostly typing, with a motion and a correction now and then
+		final int[] keys = new int[KEYS];
+		final Keymacro macro = new Keymacro();
+		String text = "the quick brown fox jumps over the lazy dog. ";
+		for (int i = 0; i < KEYS; i++) {
+			if (i % 25 == 24) {
+				keys[i] = -Protocol.BUILTIN_LEFT;
+				macro.add(Keymacro.BUILTIN, Protocol.BUILTIN_LEFT);
+			} else if (i % 10 == 9) {
+				keys[i] = -1;
+				macro.add(Keymacro.DELETE, 0);
+			} else {
+				keys[i] = text.charAt(i % text.length());
+				macro.add(Keymacro.TEXT, keys[i]);
+			}
+		}
+
+		Bench.Case perKey = new Bench.Case() {
+			public long run(int n) {
+				long h = 0;
+				for (int i = 0; i < n; i++) {
+					for (int k : keys) {
+						h = editorCall(h + k);
+					}
+				}
+				return h;
+			}
+		};
+		Bench.Case play = new Bench.Case() {
+			public long run(int n) {
+				final long[] h = new long[1];
+				Keymacro.Player player = new Keymacro.Player() {
+					public void commitText(CharSequence text) {
+						h[0] = editorCall(h[0] + text.length());
+					}
+					public void delete() {
+						h[0] = editorCall(h[0]);
+					}
+					public void sendKey(int keyCode) {
+						h[0] = editorCall(h[0] + keyCode);
+					}
+					public void builtin(int opcode) {
+						h[0] = editorCall(h[0] + opcode);
+					}
+				};
+				for (int i = 0; i < n; i++) {
+					macro.play(player);
+				}
+				return h[0];
+			}
+		};
+		run("per key", perKey);
+		run("Keymacro.play", play);
+	}
+
+	private static void run(String name, Bench.Case c) {
+		sEditorCalls = 0;
+		c.run(1);
+		long calls = sEditorCalls;
+		Bench.run(name, 20, c);
+		System.out.println(String.format("  %d editor calls per replay", calls));
+	}
+}
@@ -0,0 +1,139 @@
+package com.mojavy.android.pima;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.mojavy.android.pima.util.Protocol;
+
+public class KeymacroTest {
+
+	/** writes what a keymacro plays, one call per line */
+	static class Recorder implements Keymacro.Player {
+		final StringBuilder calls = new StringBuilder();
+
+		public void commitText(CharSequence text) {
+			calls.append("text ").append(text).append('\n');
+		}
+
+		public void delete() {
+			calls.append("delete\n");
+		}
+
+		public void sendKey(int keyCode) {
+			calls.append("key ").append(keyCode).append('\n');
+		}
+
+		public void builtin(int opcode) {
+			calls.append("builtin ").append(opcode).append('\n');
+		}
+	}
+
+	private static String play(Keymacro m) {
+		Recorder r = new Recorder();
+		m.play(r);
+		return r.calls.toString();
+	}
+
+	@Test
+	public void commitsRunsOfTextTogether() {
+		Keymacro m = new Keymacro();
+		m.add(Keymacro.TEXT, 'a');
+		m.add(Keymacro.TEXT, 'b');
+		m.addString("cd");
+		m.add(Keymacro.TEXT, 0x1f600);
+		assertEquals("text abcd\ud83d\ude00\n", play(m));
+	}
+
+	@Test
+	public void deleteTakesBackPendingText() {
+		Keymacro m = new Keymacro();
+		m.add(Keymacro.TEXT, 'a');
+		m.add(Keymacro.TEXT, 0x1f600);
+		m.add(Keymacro.DELETE, 0);
+		m.add(Keymacro.DELETE, 0);
+		// nothing left to take back: goes to the editor
+		m.add(Keymacro.DELETE, 0);
+		m.add(Keymacro.TEXT, 'b');
+		assertEquals("delete\ntext b\n", play(m));
+	}
+
+	@Test
+	public void keysAndBuiltinsCommitTheTextFirst() {
+		Keymacro m = new Keymacro();
+		m.add(Keymacro.TEXT, 'a');
+		m.add(Keymacro.BUILTIN, Protocol.BUILTIN_LEFT);
+		m.add(Keymacro.TEXT, 'b');
+		m.add(Keymacro.KEY, 66);
+		m.add(Keymacro.TEXT, 'c');
+		assertEquals("text a\nbuiltin " + Protocol.BUILTIN_LEFT + "\ntext b\nkey 66\ntext c\n", play(m));
+	}
+
+	@Test
+	public void backspacesInAnEvalExpressionAreNotRecorded() {
+		// typing "1+" then fixing it while composing an eval
+		assertFalse(Keymacro.recordsBackspace(true, 2));
+		// with nothing composed the backspace reaches the editor
+		assertTrue(Keymacro.recordsBackspace(true, 0));
+		assertTrue(Keymacro.recordsBackspace(false, 2));
+		assertTrue(Keymacro.recordsBackspace(false, 0));
+
+		// what is recorded for "x" followed by an eval of "1+2" typed as
+		// "1+3", backspace, "2": the result only, so nothing before it is
+		// deleted on replay
+		Keymacro m = new Keymacro();
+		m.add(Keymacro.TEXT, 'x');
+		if (Keymacro.recordsBackspace(true, 3)) {
+			m.add(Keymacro.DELETE, 0);
+		}
+		m.addString("3");
+		assertEquals("text x3\n", play(m));
+	}
+
+	@Test
+	public void emptyMacroPlaysNothing() {
+		assertEquals("", play(new Keymacro()));
+	}
+
+	@Test
+	public void writesAndReadsBack() {
+		Keymacro m = new Keymacro();
+		m.add(Keymacro.TEXT, 'a');
+		m.addString("bc");
+		m.add(Keymacro.BUILTIN, Protocol.BUILTIN_LEFT);
+		ByteBuffer buf = ByteBuffer.allocate(m.byteSize());
+		m.writeTo(buf);
+		assertEquals(0, buf.remaining());
+		buf.flip();
+		Keymacro read = Keymacro.readFrom(buf);
+		assertEquals(3, read.size());
+		assertEquals(play(m), play(read));
+	}
+
+	@Test
+	public void rejectsCountsLargerThanTheData() {
+		ByteBuffer buf = ByteBuffer.allocate(12);
+		buf.putInt(Integer.MAX_VALUE / 4);
+		buf.flip();
+		try {
+			Keymacro.readFrom(buf);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		buf = ByteBuffer.allocate(12);
+		buf.putInt(0).putInt(1).putInt(-1);
+		buf.flip();
+		try {
+			Keymacro.readFrom(buf);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.mojavy.android.pima;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stands in for the script host in tests: takes the budgets
+ * {@link EvalBudget} sends, and runs a script on a thread of its own,
+ * stopping it the way the host does when it goes over its time, heap or
+ * output budget.  Heap is whatever the script says it allocates.
+ */
+class StandInHost implements EvalBudget.Sink {
+
+	interface Script {
+		void run(StandInHost host) throws InterruptedException;
+	}
+
+	/** thrown into a script that goes over a budget */
+	private static class Exceeded extends RuntimeException {
+		final String budget;
+
+		Exceeded(String budget) {
+			this.budget = budget;
+		}
+	}
+
+	final Map<String, String> budgets = new HashMap<String, String>();
+	int puts;
+	/** the time budget the last script ran under */
+	int appliedTimeMs;
+
+	private long mHeap;
+	private int mHeapBudget;
+	private int mOutputBudget;
+	private final StringBuilder mOutput = new StringBuilder();
+
+	public void put(String key, String value) {
+		budgets.put(key, value);
+		puts++;
+	}
+
+	int budget(String key) {
+		return Integer.parseInt(budgets.get(key));
+	}
+
+	/**
+	 * Counts heap a script allocates.
+	 */
+	void allocate(int bytes) {
+		mHeap += bytes;
+		if (mHeap > mHeapBudget) {
+			throw new Exceeded(EvalBudget.HEAP);
+		}
+	}
+
+	/**
+	 * Adds to a script's output, up to the budget.
+	 */
+	void print(String s) {
+		int room = mOutputBudget - mOutput.length();
+		if (s.length() > room) {
+			mOutput.append(s, 0, room);
+			throw new Exceeded(EvalBudget.OUTPUT);
+		}
+		mOutput.append(s);
+	}
+
+	String output() {
+		return mOutput.toString();
+	}
+
+	String runKeybind(Script script) throws InterruptedException {
+		return run(script, budget(EvalBudget.KEY_BUDGET_KEYBIND_TIME));
+	}
+
+	String runEval(Script script) throws InterruptedException {
+		return run(script, budget(EvalBudget.KEY_BUDGET_EVAL_TIME));
+	}
+
+	/**
+	 * Runs script, and returns the budget that stopped it, what the host
+	 * would reply with as {@link EvalBudget#KEY_BUDGET_EXCEEDED}, or null
+	 * if it finished.
+	 */
+	private String run(final Script script, int timeMs) throws InterruptedException {
+		appliedTimeMs = timeMs;
+		mHeap = 0;
+		mHeapBudget = budget(EvalBudget.KEY_BUDGET_HEAP);
+		mOutputBudget = budget(EvalBudget.KEY_BUDGET_OUTPUT);
+		mOutput.setLength(0);
+		final String[] stopped = new String[1];
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					script.run(StandInHost.this);
+				} catch (Exceeded e) {
+					stopped[0] = e.budget;
+				} catch (InterruptedException e) {
+					// stopped for time
+				}
+			}
+		}, "stand-in-host");
+		t.start();
+		t.join(timeMs);
+		if (t.isAlive()) {
+			t.interrupt();
+			t.join();
+			return EvalBudget.TIME;
+		}
+		return stopped[0];
+	}
+}
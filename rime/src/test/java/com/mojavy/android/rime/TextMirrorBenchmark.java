@@ -0,0 +1,71 @@
+package com.mojavy.android.pima;
+
+/**
+ * Motions and edits on a 1 MB document, against copying the whole text
+ * per motion, which is what extracting it with an unlimited hint would
+ * cost before any Binder overhead.
+ */
+public class TextMirrorBenchmark {
+
+	private static final int DOCUMENT_CHARS = 1 << 20;
+
+	public static void main(String[] args) {
+		StringBuilder sb = new StringBuilder(DOCUMENT_CHARS);
+		for (int line = 0; sb.length() < DOCUMENT_CHARS; line++) {
+			sb.append("def method_").append(line).append("(arg) { call(arg, [1, 2]) }\n");
+		}
+		sb.setLength(DOCUMENT_CHARS);
+		final String document = sb.toString();
+		final int middle = DOCUMENT_CHARS / 2;
+
+		final TextMirror mirror = new TextMirror(DOCUMENT_CHARS, DOCUMENT_CHARS);
+		mirror.reset(document, 0, middle, middle, DOCUMENT_CHARS + 1);
+
+		Bench.run("copy of the document", 100, new Bench.Case() {
+			public long run(int n) {
+				long h = 0;
+				for (int i = 0; i < n; i++) {
+					h += new String(document.toCharArray()).length();
+				}
+				return h;
+			}
+		});
+		Bench.run("end_of_line + beginning_of_line", 100000, new Bench.Case() {
+			public long run(int n) {
+				long h = 0;
+				for (int i = 0; i < n; i++) {
+					int pos = middle + (i & 1023);
+					h += mirror.endOfLine(pos) + mirror.beginningOfLine(pos);
+				}
+				return h;
+			}
+		});
+		Bench.run("forward_sexp + backward_sexp", 100000, new Bench.Case() {
+			public long run(int n) {
+				long h = 0;
+				for (int i = 0; i < n; i++) {
+					int pos = middle + (i & 1023);
+					h += mirror.forwardSexp(pos) + mirror.backwardSexp(pos);
+				}
+				return h;
+			}
+		});
+		Bench.run("typing at the cursor (update)", 100000, new Bench.Case() {
+			int mCursor = middle;
+
+			public long run(int n) {
+				for (int i = 0; i < n; i++) {
+					if ((i & 1) == 0) {
+						mirror.update(0, mCursor, mCursor, "x", mCursor + 1, mCursor + 1);
+						mCursor++;
+					} else {
+						// and deleting it again
+						mirror.update(0, mCursor - 1, mCursor, "", mCursor - 1, mCursor - 1);
+						mCursor--;
+					}
+				}
+				return mCursor;
+			}
+		});
+	}
+}
@@ -0,0 +1,187 @@
+package com.mojavy.android.pima;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TextMirrorTest {
+
+	private static final int WINDOW = 4096;
+
+	/** mirrors all of text, with the cursor at the | */
+	private static TextMirror mirror(String text) {
+		int cursor = text.indexOf('|');
+		TextMirror m = new TextMirror(WINDOW, WINDOW * 4);
+		m.reset(text.replace("|", ""), 0, cursor, cursor, WINDOW);
+		return m;
+	}
+
+	@Test
+	public void lineMotions() {
+		TextMirror m = mirror("first\nsec|ond\nthird");
+		assertEquals(6, m.beginningOfLine(m.getSelectionStart()));
+		assertEquals(12, m.endOfLine(m.getSelectionEnd()));
+		// at either end of the text
+		assertEquals(0, m.beginningOfLine(3));
+		assertEquals(18, m.endOfLine(14));
+	}
+
+	@Test
+	public void forwardSexpOverWords() {
+		TextMirror m = mirror("|foo_bar  baz");
+		assertEquals(7, m.forwardSexp(0));
+		assertEquals(12, m.forwardSexp(7));
+		assertEquals(12, m.forwardSexp(12));
+	}
+
+	@Test
+	public void forwardSexpOverBrackets() {
+		TextMirror m = mirror("x = |(a [b] {c (d)}) + 1");
+		assertEquals(19, m.forwardSexp(4));
+		// out of a group
+		assertEquals(10, m.forwardSexp(9));
+	}
+
+	@Test
+	public void backwardSexp() {
+		TextMirror m = mirror("call(a, [b c]) done|");
+		assertEquals(15, m.backwardSexp(19));
+		assertEquals(4, m.backwardSexp(15));
+		assertEquals(0, m.backwardSexp(4));
+		// out of a group
+		assertEquals(8, m.backwardSexp(9));
+	}
+
+	@Test
+	public void unbalancedBracketsStopAtTheEnd() {
+		TextMirror m = mirror("|(open (never closed");
+		assertEquals(19, m.forwardSexp(0));
+	}
+
+	@Test
+	public void partialUpdatesInsideTheWindow() {
+		TextMirror m = mirror("hello |world");
+		// "brave " typed at the cursor
+		assertTrue(m.update(0, 6, 6, "brave ", 12, 12));
+		assertEquals(12, m.getSelectionStart());
+		assertEquals(17, m.endOfLine(12));
+		assertEquals(6, m.backwardSexp(11));
+		// "hello " deleted
+		assertTrue(m.update(0, 0, 6, "", 6, 6));
+		assertEquals(0, m.backwardSexp(5));
+		assertEquals(11, m.endOfLine(0));
+	}
+
+	@Test
+	public void editsBeforeTheWindowShiftIt() {
+		TextMirror m = new TextMirror(WINDOW, WINDOW * 4);
+		// a window starting at offset 100 of the document
+		m.reset("abc def", 100, 4, 4, WINDOW);
+		assertEquals(104, m.getSelectionStart());
+		assertEquals(107, m.forwardSexp(104));
+		// ten chars inserted at the start of the document
+		assertTrue(m.update(0, 0, 0, "0123456789", 114, 114));
+		assertEquals(117, m.forwardSexp(114));
+		assertEquals(110, m.beginningOfLine(114));
+	}
+
+	@Test
+	public void updatesThatDoNotFitInvalidate() {
+		TextMirror m = new TextMirror(WINDOW, WINDOW * 4);
+		m.reset("abc def", 100, 4, 4, WINDOW);
+		// starts before the window and ends inside it
+		assertFalse(m.update(0, 95, 103, "x", 96, 96));
+		assertFalse(m.isValid());
+	}
+
+	@Test
+	public void clippedAtTheWindowEdges() {
+		TextMirror m = new TextMirror(WINDOW, WINDOW * 4);
+		m.reset("some text", 100, 4, 4, 9);
+		// neither end of the document has been seen
+		assertTrue(m.isClipped(m.beginningOfLine(104)));
+		assertTrue(m.isClipped(m.endOfLine(104)));
+		assertFalse(m.isClipped(m.forwardSexp(100)));
+
+		TextMirror whole = mirror("some |text");
+		assertFalse(whole.isClipped(whole.beginningOfLine(5)));
+		assertFalse(whole.isClipped(whole.endOfLine(5)));
+	}
+
+	@Test
+	public void selectionUpdates() {
+		TextMirror m = mirror("one two| three");
+		m.updateSelection(3, 7);
+		assertEquals(3, m.getSelectionStart());
+		assertEquals(13, m.forwardSexp(m.getSelectionEnd()));
+	}
+
+	@Test
+	public void movedSelectionIsUnknownUntilReported() {
+		TextMirror m = mirror("one two| three");
+		assertTrue(m.isSelectionKnown());
+		// e.g. a cursor key sent to the editor
+		m.selectionMoved();
+		assertFalse(m.isSelectionKnown());
+		m.updateSelection(8, 8);
+		assertTrue(m.isSelectionKnown());
+		m.selectionMoved();
+		m.reset("one two three", 0, 3, 3, WINDOW);
+		assertTrue(m.isSelectionKnown());
+	}
+
+	@Test
+	public void growingKeepsTheSelectionAndTheOtherSide() {
+		TextMirror m = new TextMirror(WINDOW, WINDOW * 4);
+		// "line one\nline two" at offset 100, cursor after "line t"
+		m.reset("ne one\nline t|wo".replace("|", ""), 102, 13, 13, 14);
+		assertEquals(115, m.getSelectionStart());
+		assertFalse(m.isClipped(m.beginningOfLine(115)));
+		assertTrue(m.isClipped(m.backwardSexp(104)));
+
+		// the whole text before the cursor, shorter than asked for
+		m.growBefore("line one\nline t", 64);
+		assertEquals(100, m.backwardSexp(104));
+		assertEquals(109, m.beginningOfLine(115));
+		assertFalse(m.isClipped(m.beginningOfLine(104)));
+		// the side after the cursor was not touched
+		assertEquals(117, m.endOfLine(115));
+
+		m.growAfter("wo\nline three", 64);
+		assertEquals(117, m.endOfLine(115));
+		assertEquals(128, m.endOfLine(118));
+		assertFalse(m.isClipped(128));
+	}
+
+	@Test
+	public void growingAroundASelection() {
+		TextMirror m = new TextMirror(WINDOW, WINDOW * 4);
+		m.reset("b[sel]c", 10, 1, 6, 7);
+		m.growBefore("aaa b", 5);
+		assertEquals(6, m.getSelectionStart() - 5);
+		m.growAfter("cc ddd", 64);
+		// the selected text itself is kept
+		assertEquals(16, m.forwardSexp(11));
+		assertEquals(22, m.endOfLine(11));
+		assertEquals(6, m.beginningOfLine(11));
+		assertTrue(m.isClipped(6));
+	}
+
+	@Test
+	public void selectionOutsideTheWindow() {
+		TextMirror m = new TextMirror(WINDOW, WINDOW * 4);
+		m.reset("abc def", 100, 4, 4, WINDOW);
+		assertTrue(m.containsSelection());
+		m.updateSelection(107, 107);
+		assertTrue(m.containsSelection());
+		m.updateSelection(50, 50);
+		assertFalse(m.containsSelection());
+		m.updateSelection(105, 300);
+		assertFalse(m.containsSelection());
+		// a selection made backwards
+		m.updateSelection(106, 101);
+		assertTrue(m.containsSelection());
+	}
+}
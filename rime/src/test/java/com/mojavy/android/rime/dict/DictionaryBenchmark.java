@@ -0,0 +1,114 @@
+package com.mojavy.android.pima.dict;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.mojavy.android.pima.Bench;
+
+/**
+ * Looks up completions in a dictionary of 100k made up words, as typing a
+ * word does one character at a time: with {@link DictionaryCursor} over the
+ * heap and the mapped dictionary, and with a scan of the sorted word list
+ * for comparison.
+ */
+public class DictionaryBenchmark {
+
+	private static final int WORDS = 100000;
+	private static final int MAX = 5;
+
+	public static void main(String[] args) throws IOException {
+		Random r = new Random(1);
+		final List<String> words = new ArrayList<String>(WORDS);
+		final Map<String, Integer> frequencies = new HashMap<String, Integer>();
+		TrieDictionary.Builder b = new TrieDictionary.Builder();
+		while (words.size() < WORDS) {
+			char[] w = new char[3 + r.nextInt(8)];
+			for (int i = 0; i < w.length; i++) {
+				// skewed towards the front of the alphabet, like real text
+				w[i] = (char) ('a' + (int) (26 * r.nextDouble() * r.nextDouble()));
+			}
+			String word = new String(w);
+			if (frequencies.containsKey(word)) {
+				continue;
+			}
+			int freq = 1 + 1000000 / (1 + words.size());
+			words.add(word);
+			frequencies.put(word, freq);
+			b.add(word, freq);
+		}
+		final TrieDictionary trie = b.build();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DictionaryCompiler.compile(trie, trie.size(), out);
+		ByteBuffer direct = ByteBuffer.allocateDirect(out.size());
+		direct.put(out.toByteArray());
+		direct.flip();
+		final MappedDictionary mapped = new MappedDictionary(direct);
+		System.out.println(String.format("%d words, %d nodes", WORDS, trie.size()));
+
+		// the words typed, in keystrokes
+		final String[] typed = new String[256];
+		for (int i = 0; i < typed.length; i++) {
+			typed[i] = words.get(r.nextInt(WORDS));
+		}
+		final List<String> sorted = new ArrayList<String>(words);
+		Collections.sort(sorted);
+
+		final Comparator<String> byFrequency = new Comparator<String>() {
+			public int compare(String a, String b) {
+				return frequencies.get(b) - frequencies.get(a);
+			}
+		};
+		// each operation types a whole word, asking for completions per key
+		Bench.run("sorted list scan", 64, new Bench.Case() {
+			public long run(int n) {
+				long h = 0;
+				List<String> found = new ArrayList<String>();
+				for (int i = 0; i < n; i++) {
+					String word = typed[i & 255];
+					for (int k = 1; k <= word.length(); k++) {
+						String prefix = word.substring(0, k);
+						found.clear();
+						int from = Collections.binarySearch(sorted, prefix);
+						for (int j = from < 0 ? -from - 1 : from; j < sorted.size()
+								&& sorted.get(j).startsWith(prefix); j++) {
+							found.add(sorted.get(j));
+						}
+						Collections.sort(found, byFrequency);
+						h += Math.min(MAX, found.size());
+					}
+				}
+				return h;
+			}
+		});
+		Bench.run("DictionaryCursor on TrieDictionary", 4096, cursor(trie, typed));
+		Bench.run("DictionaryCursor on MappedDictionary", 4096, cursor(mapped, typed));
+	}
+
+	private static Bench.Case cursor(final Dictionary d, final String[] typed) {
+		return new Bench.Case() {
+			public long run(int n) {
+				long h = 0;
+				DictionaryCursor c = new DictionaryCursor(d);
+				List<String> found = new ArrayList<String>();
+				for (int i = 0; i < n; i++) {
+					String word = typed[i & 255];
+					c.reset();
+					for (int k = 0; k < word.length(); k++) {
+						c.append(word.charAt(k));
+						found.clear();
+						h += c.complete(MAX, found);
+					}
+				}
+				return h;
+			}
+		};
+	}
+}
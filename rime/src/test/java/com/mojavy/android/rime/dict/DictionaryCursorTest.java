@@ -0,0 +1,95 @@
+package com.mojavy.android.pima.dict;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DictionaryCursorTest {
+
+	private static final Dictionary WORDS = new TrieDictionary.Builder()
+			.add("the", 500).add("then", 40).add("there", 90).add("these", 60)
+			.add("they", 300).add("theory", 5).add("to", 400).add("London", 30)
+			.build();
+
+	@Test
+	public void completesMostFrequentFirst() {
+		DictionaryCursor c = new DictionaryCursor(WORDS);
+		c.sync("the");
+		List<String> out = new ArrayList<String>();
+		assertEquals(4, c.complete(4, out));
+		assertEquals("[the, they, there, these]", out.toString());
+	}
+
+	@Test
+	public void completesEverythingBelowAShortPrefix() {
+		DictionaryCursor c = new DictionaryCursor(WORDS);
+		c.sync("t");
+		List<String> out = new ArrayList<String>();
+		assertEquals(7, c.complete(100, out));
+		assertEquals("[the, to, they, there, these, then, theory]", out.toString());
+	}
+
+	@Test
+	public void followsTypingAndDeleting() {
+		DictionaryCursor c = new DictionaryCursor(WORDS);
+		c.append('t');
+		c.append('h');
+		c.append('e');
+		assertTrue(c.isWord());
+		c.append('r');
+		assertFalse(c.isWord());
+		c.append('x');
+		assertEquals(Dictionary.NONE, c.node());
+		List<String> out = new ArrayList<String>();
+		assertEquals(0, c.complete(5, out));
+		c.delete();
+		c.delete();
+		assertEquals(3, c.length());
+		assertTrue(c.isWord());
+	}
+
+	@Test
+	public void syncKeepsTheCommonPrefix() {
+		DictionaryCursor c = new DictionaryCursor(WORDS);
+		c.sync("these");
+		assertTrue(c.isWord());
+		c.sync("they");
+		assertTrue(c.isWord());
+		assertEquals(4, c.length());
+		c.sync("");
+		assertEquals(0, c.length());
+		assertEquals(WORDS.root(), c.node());
+	}
+
+	@Test
+	public void ignoresCase() {
+		DictionaryCursor c = new DictionaryCursor(WORDS);
+		c.sync("LON");
+		List<String> out = new ArrayList<String>();
+		c.complete(5, out);
+		assertEquals("[london]", out.toString());
+		c.sync("The");
+		assertTrue(c.isWord());
+	}
+
+	@Test
+	public void growsForLongPrefixes() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+		String word = sb.toString();
+		DictionaryCursor c = new DictionaryCursor(new TrieDictionary.Builder().add(word, 1).build());
+		c.sync(word);
+		assertTrue(c.isWord());
+		List<String> out = new ArrayList<String>();
+		c.sync(word.substring(0, 50));
+		c.complete(1, out);
+		assertEquals(word, out.get(0));
+	}
+}
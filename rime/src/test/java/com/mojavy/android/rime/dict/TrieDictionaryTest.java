@@ -0,0 +1,84 @@
+package com.mojavy.android.pima.dict;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class TrieDictionaryTest {
+
+	/** the words under node, depth first, as "word=frequency" */
+	private static String dump(Dictionary d) {
+		StringBuilder sb = new StringBuilder();
+		dump(d, d.root(), "", sb);
+		return sb.toString();
+	}
+
+	private static void dump(Dictionary d, int node, String prefix, StringBuilder sb) {
+		for (int c = d.firstChild(node); c != Dictionary.NONE; c = d.nextSibling(c)) {
+			assertEquals(node, d.parent(c));
+			String word = prefix + d.label(c);
+			if (d.frequency(c) > 0) {
+				sb.append(word).append('=').append(d.frequency(c)).append(' ');
+			}
+			dump(d, c, word, sb);
+		}
+	}
+
+	@Test
+	public void loadsAWordList() throws IOException {
+		TrieDictionary d = TrieDictionary.load(new StringReader(
+				"the\t100\nthen\t20\nto\t80\nbad\tfrequency\nzero\t0\nplain\n"));
+		assertEquals("the=100 then=20 to=80 plain=1 ", dump(d));
+	}
+
+	@Test
+	public void childrenAreOrderedByTheirBestWord() {
+		TrieDictionary d = new TrieDictionary.Builder()
+				.add("ab", 1).add("ac", 5).add("b", 3).build();
+		int a = d.firstChild(d.root());
+		assertEquals('a', d.label(a));
+		assertEquals(5, d.maxFrequency(a));
+		assertEquals('b', d.label(d.nextSibling(a)));
+		assertEquals('c', d.label(d.firstChild(a)));
+	}
+
+	@Test
+	public void wordsAreStoredInLowerCase() {
+		TrieDictionary d = new TrieDictionary.Builder()
+				.add("Paris", 10).add("paris", 4).add("NASA", 2).build();
+		assertEquals("paris=10 nasa=2 ", dump(d));
+	}
+
+	@Test
+	public void compilesToTheSameMappedDictionary() throws IOException {
+		TrieDictionary d = new TrieDictionary.Builder()
+				.add("the", 100).add("then", 20).add("to", 80).add("a", 1).build();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DictionaryCompiler.compile(d, d.size(), out);
+		assertEquals(MappedDictionary.fileSize(d.size()), out.size());
+		MappedDictionary m = new MappedDictionary(ByteBuffer.wrap(out.toByteArray()));
+		assertEquals(d.size(), m.size());
+		assertEquals(dump(d), dump(m));
+	}
+
+	@Test
+	public void rejectsATruncatedFile() throws IOException {
+		TrieDictionary d = new TrieDictionary.Builder().add("word", 1).build();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DictionaryCompiler.compile(d, d.size(), out);
+		byte[] bytes = out.toByteArray();
+		ByteBuffer truncated = ByteBuffer.wrap(bytes, 0, bytes.length - 4).slice();
+		try {
+			new MappedDictionary(truncated);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}